@@ -1,6 +1,7 @@
 package nl.fits4all.laird;
 
 import android.Manifest;
+import android.net.Uri;
 import android.util.Log;
 
 import com.getcapacitor.JSObject;
@@ -12,7 +13,14 @@ import com.getcapacitor.annotation.CapacitorPlugin;
 import com.getcapacitor.annotation.Permission;
 import com.getcapacitor.annotation.PermissionCallback;
 
+import java.io.File;
+import java.io.IOException;
+
 import nl.fits4all.laird.serial.BluetoothSerial;
+import nl.fits4all.laird.serial.BluetoothSerialManager;
+import nl.fits4all.laird.serial.ScanOptions;
+import nl.fits4all.laird.serial.bt.ble.vsp.CommandModeFileWriter;
+import nl.fits4all.laird.serial.misc.DataEncoding;
 
 @CapacitorPlugin(
     name = "Laird",
@@ -65,7 +73,9 @@ public class LairdCapacitorPlugin extends Plugin {
      * Starts the discovering process if location permissions were granted.
      * Also checks if bluetooth is currently enabled. If both these are granted
      * and enabled, then the plugin will start discovering bluetooth devices in
-     * range of the host device.
+     * range of the host device. By default only devices with the VSP service
+     * are discovered, the services, names, addresses and manufacturerData
+     * parameters change which devices are found.
      *
      * @param call PluginCall.
      */
@@ -89,9 +99,15 @@ public class LairdCapacitorPlugin extends Plugin {
             return;
         }
 
-        // IDE can't check.
-        // noinspection ConstantConditions
-        serial.startDiscovering(call.getBoolean("periodically", true));
+        ScanOptions scanOptions;
+        try {
+            scanOptions = ScanOptions.fromJSObject(call.getData());
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+            return;
+        }
+
+        serial.startDiscovering(scanOptions);
         JSObject js = new JSObject();
         js.put("status", 1);
         js.put("message", "SUCCESS_DISCOVERY_STARTED");
@@ -115,6 +131,12 @@ public class LairdCapacitorPlugin extends Plugin {
     /**
      * Connects to the specified target bluetooth device. A address parameter
      * must be specified to start the connection with the bluetooth device.
+     * Multiple devices can be connected at the same time. The device doesn't
+     * have to be discovered first. By default the device is connected in the
+     * background, the optional autoConnect parameter set to false connects
+     * directly instead. The optional
+     * skipBondedCccdWrites parameter skips the CCCD writes of a bonded device
+     * that still has them from the previous connection.
      *
      * @param call PluginCall
      */
@@ -127,14 +149,20 @@ public class LairdCapacitorPlugin extends Plugin {
             return;
         }
 
-        serial.connect(call.getData().getString("address"), true);
+        if (!serial.connect(call.getString("address"), call.getBoolean("autoConnect", true),
+                call.getBoolean("skipBondedCccdWrites", false))) {
+            call.reject("Invalid address.");
+            return;
+        }
+
         JSObject js = new JSObject();
         js.put("status", "Connected to bluetooth device.");
         call.resolve(js);
     }
 
     /**
-     * Disconnects the current connected bluetooth device.
+     * Disconnects the bluetooth device with the given address. The address
+     * parameter may be left out if only one device is connected.
      *
      * @param call PluginCall
      */
@@ -142,16 +170,22 @@ public class LairdCapacitorPlugin extends Plugin {
     public void disconnectFromDevice(PluginCall call) {
         Log.d(null, "Triggered method disconnectFromDevice()");
 
-        serial.disconnect();
+        if (!serial.disconnect(call.getString("address"))) {
+            call.reject("Device is not connected.");
+            return;
+        }
+
         JSObject js = new JSObject();
         js.put("status", "Disconnected from bluetooth device.");
         call.resolve(js);
     }
 
     /**
-     * Sends the current connected bluetooth device data. A data
+     * Sends the bluetooth device with the given address data. A data
      * parameter must be specified to start sending data to the bluetooth
-     * device.
+     * device. Binary data can be sent by passing it as base64 with the
+     * encoding parameter set to "base64". The address parameter may be left
+     * out if only one device is connected.
      *
      * @param call PluginCall
      */
@@ -164,12 +198,230 @@ public class LairdCapacitorPlugin extends Plugin {
             return;
         }
 
-        serial.sendData(call.getString("data"));
+        byte[] data;
+        try {
+            data = DataEncoding.fromName(call.getString("encoding"), DataEncoding.UTF8)
+                    .decode(call.getString("data"));
+        } catch (IllegalArgumentException e) {
+            call.reject("Invalid data or encoding parameter.");
+            return;
+        }
+
+        if (!serial.sendData(call.getString("address"), data)) {
+            call.reject("Device is not connected.");
+            return;
+        }
+
         JSObject js = new JSObject();
         js.put("status", "Successfully sent data to device.");
         call.resolve(js);
     }
 
+    /**
+     * Streams a file to the bluetooth device with the given address. A uri
+     * parameter must be specified, either a file or content uri or a path.
+     * The file is read from disk while it's sent, progress is reported with
+     * fileUploadProgressEvent and the result with fileUploadFinishedEvent.
+     * With resume set to true the upload continues where an earlier upload of
+     * the file to the device stopped, and is continued once the device is
+     * connected again after a disconnect.
+     * The address parameter may be left out if only one device is connected.
+     *
+     * @param call PluginCall
+     */
+    @PluginMethod
+    public void uploadFile(PluginCall call) {
+        Log.d(null, "Triggered method uploadFile()");
+
+        String uriString = call.getString("uri");
+        if (uriString == null) {
+            call.reject("Did not specify uri parameter.");
+            return;
+        }
+
+        Uri uri = Uri.parse(uriString);
+        if (uri.getScheme() == null) {
+            uri = Uri.fromFile(new File(uriString));
+        }
+
+        try {
+            if (!serial.uploadFile(call.getString("address"), uri, call.getBoolean("resume", false))) {
+                call.reject("Device is not connected.");
+                return;
+            }
+        } catch (IOException e) {
+            call.reject("Could not open file: " + e.getMessage());
+            return;
+        } catch (IllegalStateException e) {
+            call.reject("A file is already written to the device.");
+            return;
+        }
+
+        JSObject js = new JSObject();
+        js.put("status", "Started uploading file.");
+        call.resolve(js);
+    }
+
+    /**
+     * Cancels the file upload to the bluetooth device with the given
+     * address. The address parameter may be left out if only one device is
+     * connected.
+     *
+     * @param call PluginCall
+     */
+    @PluginMethod
+    public void cancelFileUpload(PluginCall call) {
+        Log.d(null, "Triggered method cancelFileUpload()");
+
+        if (!serial.cancelFileUpload(call.getString("address"))) {
+            call.reject("No file is uploaded.");
+            return;
+        }
+
+        JSObject js = new JSObject();
+        js.put("status", "Canceled file upload.");
+        call.resolve(js);
+    }
+
+    /**
+     * Writes a file to the file system of the module with the given address,
+     * for example a compiled smartBASIC application. The module must be in
+     * command mode. A uri parameter must be specified, either a file or
+     * content uri or a path. A .uwc file is stored under its name up to the
+     * first dot, other files under their full name. The window parameter
+     * sets how many write commands may be waiting for a response of the
+     * module. Progress is reported with moduleFileWriteProgressEvent and the
+     * result with moduleFileWriteFinishedEvent.
+     * The address parameter may be left out if only one device is connected.
+     *
+     * @param call PluginCall
+     */
+    @PluginMethod
+    public void writeModuleFile(PluginCall call) {
+        Log.d(null, "Triggered method writeModuleFile()");
+
+        String uriString = call.getString("uri");
+        if (uriString == null) {
+            call.reject("Did not specify uri parameter.");
+            return;
+        }
+
+        Uri uri = Uri.parse(uriString);
+        if (uri.getScheme() == null) {
+            uri = Uri.fromFile(new File(uriString));
+        }
+
+        int window = call.getInt("window", CommandModeFileWriter.DEFAULT_WINDOW);
+
+        try {
+            if (!serial.writeModuleFile(call.getString("address"), uri, window)) {
+                call.reject("Device is not connected.");
+                return;
+            }
+        } catch (IOException e) {
+            call.reject("Could not open file: " + e.getMessage());
+            return;
+        } catch (IllegalStateException e) {
+            call.reject("A file is already written to the device.");
+            return;
+        }
+
+        JSObject js = new JSObject();
+        js.put("status", "Started writing file to module.");
+        call.resolve(js);
+    }
+
+    /**
+     * Cancels writing a file to the module with the given address. The
+     * address parameter may be left out if only one device is connected.
+     *
+     * @param call PluginCall
+     */
+    @PluginMethod
+    public void cancelModuleFileWrite(PluginCall call) {
+        Log.d(null, "Triggered method cancelModuleFileWrite()");
+
+        if (!serial.cancelModuleFileWrite(call.getString("address"))) {
+            call.reject("No file is written to the module.");
+            return;
+        }
+
+        JSObject js = new JSObject();
+        js.put("status", "Canceled writing file to module.");
+        call.resolve(js);
+    }
+
+    /**
+     * Changes how data is sent to the bluetooth device. When writeWithoutResponse
+     * is true data is streamed without waiting for a response on every write,
+     * only the buffer state of the device slows it down. A pacingDelay in
+     * milliseconds can be given for devices that need time between writes.
+     * The encoding parameter sets the encoding of received data events and
+     * the framing parameter how received data is split into events. Without
+     * an address parameter the options apply to all connections.
+     *
+     * @param call PluginCall
+     */
+    @PluginMethod
+    public void setTransferOptions(PluginCall call) {
+        Log.d(null, "Triggered method setTransferOptions()");
+
+        try {
+            if (!serial.setTransferOptions(call.getString("address"), call.getData())) {
+                call.reject("Device is not connected.");
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+            return;
+        }
+
+        JSObject js = new JSObject();
+        js.put("status", "Changed transfer options.");
+        call.resolve(js);
+    }
+
+    /**
+     * Gets how long each phase of the last connection setup with the
+     * bluetooth device took, in milliseconds since the connection was
+     * requested. The address parameter may be left out if only one device is
+     * connected.
+     *
+     * @param call PluginCall
+     */
+    @PluginMethod
+    public void getConnectionTiming(PluginCall call) {
+        Log.d(null, "Triggered method getConnectionTiming()");
+
+        BluetoothSerialManager manager = serial.getManager(call.getString("address"));
+        if (manager == null) {
+            call.reject("Device is not connected.");
+            return;
+        }
+
+        call.resolve(manager.getConnectionTimingJSObject());
+    }
+
+    /**
+     * Gets the transfer statistics of the connection with the bluetooth
+     * device since it was set up. The address parameter may be left out if
+     * only one device is connected.
+     *
+     * @param call PluginCall
+     */
+    @PluginMethod
+    public void getStats(PluginCall call) {
+        Log.d(null, "Triggered method getStats()");
+
+        BluetoothSerialManager manager = serial.getManager(call.getString("address"));
+        if (manager == null) {
+            call.reject("Device is not connected.");
+            return;
+        }
+
+        call.resolve(manager.getStatsJSObject());
+    }
+
     /**
      * Notifies capacitors event listeners. We wrap this because it's protected
      * and we want to use it in other classes to trigger custom events.
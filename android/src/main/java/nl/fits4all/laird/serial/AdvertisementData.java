@@ -0,0 +1,302 @@
+package nl.fits4all.laird.serial;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Parsed advertisement data of a device, as defined by the AD structures of
+ * the Bluetooth Core Specification Supplement.
+ * <p>
+ * The AD structures are walked in place, only the positions of the fields in
+ * the raw advertisement data are kept. An instance is reused for every
+ * advertisement of a device, so parsing doesn't allocate anything once the
+ * instance has seen the largest advertisement of the device. The fields are
+ * only converted to strings or UUIDs when they are read.
+ */
+public class AdvertisementData {
+
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_INCOMPLETE_16_BIT_UUIDS = 0x02;
+    public static final int TYPE_COMPLETE_16_BIT_UUIDS = 0x03;
+    public static final int TYPE_INCOMPLETE_32_BIT_UUIDS = 0x04;
+    public static final int TYPE_COMPLETE_32_BIT_UUIDS = 0x05;
+    public static final int TYPE_INCOMPLETE_128_BIT_UUIDS = 0x06;
+    public static final int TYPE_COMPLETE_128_BIT_UUIDS = 0x07;
+    public static final int TYPE_SHORTENED_LOCAL_NAME = 0x08;
+    public static final int TYPE_COMPLETE_LOCAL_NAME = 0x09;
+    public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    /**
+     * Value of the flags and TX power level when they are not advertised.
+     */
+    public static final int NOT_PRESENT = Integer.MIN_VALUE;
+
+    /**
+     * Most significant bits of the bluetooth base UUID, short UUIDs are
+     * placed in bits 32 to 63.
+     */
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+
+    private byte[] data;
+    private int flags = NOT_PRESENT;
+    private int txPowerLevel = NOT_PRESENT;
+    private int nameOffset = -1;
+    private int nameLength = 0;
+
+    /**
+     * Offsets of the service UUIDs in the data and their size in bytes.
+     */
+    private int[] uuidOffsets = new int[4];
+    private int[] uuidSizes = new int[4];
+    private int uuidCount = 0;
+
+    /**
+     * Offsets of the manufacturer specific data structures in the data, the
+     * offset points to the company identifier.
+     */
+    private int[] manufacturerOffsets = new int[2];
+    private int[] manufacturerLengths = new int[2];
+    private int manufacturerCount = 0;
+
+    /**
+     * Parses raw advertisement data, the previous fields are discarded. The
+     * data is referenced, not copied, so it must not be changed afterwards.
+     * A malformed AD structure ends the parsing, the fields before it are
+     * kept.
+     * @param scanRecord Raw advertisement data, null clears all fields.
+     */
+    public void parse(byte[] scanRecord) {
+        data = scanRecord;
+        flags = NOT_PRESENT;
+        txPowerLevel = NOT_PRESENT;
+        nameOffset = -1;
+        nameLength = 0;
+        uuidCount = 0;
+        manufacturerCount = 0;
+
+        if (scanRecord == null) {
+            return;
+        }
+
+        int offset = 0;
+        while (offset < scanRecord.length) {
+            int length = scanRecord[offset] & 0xFF;
+            // A zero length marks the padding at the end of the data.
+            if (length == 0 || offset + length >= scanRecord.length) {
+                break;
+            }
+
+            int type = scanRecord[offset + 1] & 0xFF;
+            int fieldOffset = offset + 2;
+            int fieldLength = length - 1;
+
+            switch (type) {
+                case TYPE_FLAGS:
+                    if (fieldLength >= 1) {
+                        flags = scanRecord[fieldOffset] & 0xFF;
+                    }
+                    break;
+                case TYPE_INCOMPLETE_16_BIT_UUIDS:
+                case TYPE_COMPLETE_16_BIT_UUIDS:
+                    addUuids(fieldOffset, fieldLength, 2);
+                    break;
+                case TYPE_INCOMPLETE_32_BIT_UUIDS:
+                case TYPE_COMPLETE_32_BIT_UUIDS:
+                    addUuids(fieldOffset, fieldLength, 4);
+                    break;
+                case TYPE_INCOMPLETE_128_BIT_UUIDS:
+                case TYPE_COMPLETE_128_BIT_UUIDS:
+                    addUuids(fieldOffset, fieldLength, 16);
+                    break;
+                case TYPE_SHORTENED_LOCAL_NAME:
+                    // The complete name wins, wherever it is in the data.
+                    if (nameOffset < 0) {
+                        nameOffset = fieldOffset;
+                        nameLength = fieldLength;
+                    }
+                    break;
+                case TYPE_COMPLETE_LOCAL_NAME:
+                    nameOffset = fieldOffset;
+                    nameLength = fieldLength;
+                    break;
+                case TYPE_TX_POWER_LEVEL:
+                    if (fieldLength >= 1) {
+                        txPowerLevel = scanRecord[fieldOffset];
+                    }
+                    break;
+                case TYPE_MANUFACTURER_SPECIFIC_DATA:
+                    if (fieldLength >= 2) {
+                        addManufacturerData(fieldOffset, fieldLength);
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            offset += length + 1;
+        }
+    }
+
+    /**
+     * @return The flags or NOT_PRESENT.
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return The TX power level in dBm or NOT_PRESENT.
+     */
+    public int getTxPowerLevel() {
+        return txPowerLevel;
+    }
+
+    /**
+     * @return The complete or shortened local name, or null.
+     */
+    public String getLocalName() {
+        if (nameOffset < 0) {
+            return null;
+        }
+        return new String(data, nameOffset, nameLength, StandardCharsets.UTF_8);
+    }
+
+    public int getServiceUuidCount() {
+        return uuidCount;
+    }
+
+    /**
+     * @param index Index of the service UUID.
+     * @return The service UUID, short UUIDs are expanded with the bluetooth
+     * base UUID.
+     */
+    public UUID getServiceUuid(int index) {
+        int offset = uuidOffsets[index];
+        int size = uuidSizes[index];
+
+        if (size == 16) {
+            // 128 bit UUIDs are advertised little endian.
+            return new UUID(readLong(offset + 8), readLong(offset));
+        }
+
+        long shortUuid = readLittleEndian(offset, size);
+        return new UUID(BASE_UUID_MSB | (shortUuid << 32), BASE_UUID_LSB);
+    }
+
+    /**
+     * Checks for a 16 or 32 bit service UUID without converting the UUIDs.
+     * @param shortUuid The short UUID, for example 0x180A.
+     * @return True if the service UUID is advertised.
+     */
+    public boolean hasServiceUuid(long shortUuid) {
+        for (int i = 0; i < uuidCount; i++) {
+            if (uuidSizes[i] != 16 && readLittleEndian(uuidOffsets[i], uuidSizes[i]) == shortUuid) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getManufacturerDataCount() {
+        return manufacturerCount;
+    }
+
+    /**
+     * @param index Index of the manufacturer specific data.
+     * @return The company identifier assigned by the Bluetooth SIG.
+     */
+    public int getCompanyId(int index) {
+        return (int) readLittleEndian(manufacturerOffsets[index], 2);
+    }
+
+    /**
+     * @param index Index of the manufacturer specific data.
+     * @return Offset of the data after the company identifier in the raw
+     * advertisement data.
+     */
+    public int getManufacturerDataOffset(int index) {
+        return manufacturerOffsets[index] + 2;
+    }
+
+    /**
+     * @param index Index of the manufacturer specific data.
+     * @return Length of the data after the company identifier.
+     */
+    public int getManufacturerDataLength(int index) {
+        return manufacturerLengths[index] - 2;
+    }
+
+    /**
+     * Checks if a company advertises data starting with the prefix, without
+     * copying the data.
+     * @param companyId The company identifier.
+     * @param prefix The data the manufacturer specific data should start with.
+     * @return True if the manufacturer specific data matches.
+     */
+    public boolean matchesManufacturerData(int companyId, byte[] prefix) {
+        for (int i = 0; i < manufacturerCount; i++) {
+            if (getCompanyId(i) != companyId || getManufacturerDataLength(i) < prefix.length) {
+                continue;
+            }
+
+            int offset = getManufacturerDataOffset(i);
+            int j = 0;
+            while (j < prefix.length && data[offset + j] == prefix[j]) {
+                j++;
+            }
+            if (j == prefix.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The raw advertisement data the offsets refer to.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    private void addUuids(int offset, int length, int size) {
+        for (int i = 0; i + size <= length; i += size) {
+            if (uuidCount == uuidOffsets.length) {
+                uuidOffsets = grow(uuidOffsets);
+                uuidSizes = grow(uuidSizes);
+            }
+            uuidOffsets[uuidCount] = offset + i;
+            uuidSizes[uuidCount] = size;
+            uuidCount++;
+        }
+    }
+
+    private void addManufacturerData(int offset, int length) {
+        if (manufacturerCount == manufacturerOffsets.length) {
+            manufacturerOffsets = grow(manufacturerOffsets);
+            manufacturerLengths = grow(manufacturerLengths);
+        }
+        manufacturerOffsets[manufacturerCount] = offset;
+        manufacturerLengths[manufacturerCount] = length;
+        manufacturerCount++;
+    }
+
+    private long readLittleEndian(int offset, int size) {
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private long readLong(int offset) {
+        return readLittleEndian(offset, 8);
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
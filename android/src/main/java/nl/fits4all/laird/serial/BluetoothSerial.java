@@ -8,16 +8,26 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import android.bluetooth.le.ScanResult;
+
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import nl.fits4all.laird.LairdCapacitorPlugin;
 import nl.fits4all.laird.serial.bt.BluetoothAdapterHelper;
 import nl.fits4all.laird.serial.bt.BluetoothAdapterHelperCallback;
+import nl.fits4all.laird.serial.misc.DataEncoding;
 
 
 public class BluetoothSerial implements BluetoothAdapterHelperCallback {
@@ -25,31 +35,65 @@ public class BluetoothSerial implements BluetoothAdapterHelperCallback {
     private final String TAG = this.getClass().getName();
 
     private final LairdCapacitorPlugin plugin;
+    private final Activity activity;
     private BluetoothAdapterHelper bluetoothAdapterHelper;
-    private BluetoothSerialManager bluetoothSerialManager;
-    private final HashMap<String, BluetoothDevice> devices = new HashMap<>();
+    /**
+     * Devices found while discovering are kept for 5 minutes after they were
+     * last seen, up to 256 devices.
+     */
+    private final ScannedDeviceRegistry scannedDevices = new ScannedDeviceRegistry(256, 5 * 60 * 1000);
+    /**
+     * One manager for every connected device, keyed by address.
+     */
+    private final ConcurrentHashMap<String, BluetoothSerialManager> managers = new ConcurrentHashMap<>();
+    /**
+     * Transfer options of new connections.
+     */
+    private TransferOptions transferOptions = new TransferOptions();
+    /**
+     * Options of the current or last scan.
+     */
+    private ScanOptions scanOptions = null;
+    /**
+     * Checks for lost devices while discovering with changesOnly.
+     */
+    private final Handler lostDevicesHandler = new Handler(Looper.getMainLooper());
+    private final Runnable lostDevicesCheck = new Runnable() {
+        @Override
+        public void run() {
+            reportLostDevices();
+            lostDevicesHandler.postDelayed(this, scanOptions.getLostTimeout() / 2);
+        }
+    };
 
     public BluetoothSerial(LairdCapacitorPlugin plugin, Activity activity) {
         this.plugin = plugin;
+        this.activity = activity;
 
         if (bluetoothAdapterHelper == null) {
             bluetoothAdapterHelper = new BluetoothAdapterHelper(activity, this);
             Log.d(TAG, "Initialized bluetooth adapter.");
         }
-
-        if (bluetoothSerialManager == null) {
-            bluetoothSerialManager = new BluetoothSerialManager(plugin, activity);
-            Log.d(TAG, "Initialized bluetooth manager.");
-        }
     }
 
     /**
      * Starts the discovering process of finding devices.
+     * @param scanOptions Filters and settings of the scan.
      */
-    public void startDiscovering(boolean periodically) {
-        if (!bluetoothAdapterHelper.isDiscovering()) {
-            devices.clear(); // Clear list before discovering.
-            if (periodically) {
+    public void startDiscovering(ScanOptions scanOptions) {
+        if (!bluetoothAdapterHelper.isBleScanning()) {
+            scannedDevices.evictExpired();
+            // Batch in the controller when possible, it then wakes up once per report window.
+            boolean offloadedBatching = scanOptions.getReportDelay() > 0
+                    && bluetoothAdapterHelper.isOffloadedScanBatchingSupported();
+            bluetoothAdapterHelper.setScanOptions(scanOptions.createScanFilters(),
+                    scanOptions.createScanSettings(offloadedBatching),
+                    offloadedBatching ? 0 : scanOptions.getReportDelay());
+            bluetoothAdapterHelper.setScanDutyCycle(scanOptions.getScanWindow(), scanOptions.getScanInterval());
+            this.scanOptions = scanOptions;
+            // Every scan reports the devices in range again.
+            scannedDevices.clearReported();
+            if (scanOptions.isPeriodically()) {
                 bluetoothAdapterHelper.startBleScanPeriodically();
                 Log.d(TAG, "Started discovering of bluetooth devices periodically.");
             } else {
@@ -65,7 +109,7 @@ public class BluetoothSerial implements BluetoothAdapterHelperCallback {
      * Cancels the discovering process of finding devices.
      */
     public void cancelDiscovering() {
-        if (bluetoothAdapterHelper.isDiscovering()) {
+        if (bluetoothAdapterHelper.isBleScanning()) {
             bluetoothAdapterHelper.stopBleScan();
             Log.d(TAG, "Canceled discovering of bluetooth devices");
         } else {
@@ -74,36 +118,235 @@ public class BluetoothSerial implements BluetoothAdapterHelperCallback {
     }
 
     /**
-     * Connects to the address that was discovered.
-     * @param address Address of discovered device.
-     * @param autoConnect AutoConnect of discovered device.
+     * Connects to the address. The address doesn't have to be discovered
+     * first, known devices are reconnected without scanning. Every device
+     * gets its own connection, so multiple devices can be connected at the
+     * same time.
+     * @param address Address of the device.
+     * @param autoConnect False to connect directly, which fails after about
+     *                    30 seconds if the device is not in range. True to
+     *                    connect in the background as soon as the device
+     *                    advertises, which is slower but never times out.
+     * @param skipBondedCccdWrites True to skip the CCCD writes of a bonded
+     *                             device with the same GATT layout as on the
+     *                             previous connection, only for devices that
+     *                             store the CCCDs of bonded clients.
+     * @return false if the address is not valid.
      */
-    public void connect(String address, boolean autoConnect) {
-        BluetoothDevice device = devices.get(address);
+    public boolean connect(String address, boolean autoConnect, boolean skipBondedCccdWrites) {
+        address = normalizeAddress(address);
+        BluetoothDevice device;
 
-        if (device != null) {
-            Log.d(TAG, "Connecting to bluetooth device.");
-            bluetoothSerialManager.connect(device, autoConnect);
+        ScannedDeviceRegistry.ScannedDevice scannedDevice = scannedDevices.get(address);
+        if (scannedDevice != null) {
+            device = scannedDevice.getDevice();
+        } else if (BluetoothAdapter.checkBluetoothAddress(address)) {
+            // A known device, the address is enough to connect.
+            device = bluetoothAdapterHelper.getBluetoothAdapter().getRemoteDevice(address);
         } else {
-            Log.d(TAG, "Could not connect to bluetooth device. Device not found.");
+            Log.d(TAG, "Could not connect to bluetooth device. Invalid address " + address);
+            return false;
+        }
+
+        BluetoothSerialManager manager = managers.get(address);
+        if (manager != null) {
+            Log.d(TAG, "Already connecting or connected to bluetooth device " + address);
+            return true;
+        }
+
+        manager = new BluetoothSerialManager(plugin, activity, this);
+        transferOptions.applyTo(manager);
+        manager.setSkipBondedCccdWrites(skipBondedCccdWrites);
+        managers.put(address, manager);
+
+        Log.d(TAG, "Connecting to bluetooth device " + address);
+        manager.connect(device, autoConnect);
+        return true;
+    }
+
+    /**
+     * Disconnects the device with the given address.
+     * @param address Address of the device, may be null if only one device is connected.
+     * @return false if the device is not connected.
+     */
+    public boolean disconnect(String address) {
+        BluetoothSerialManager manager = getManager(address);
+
+        if (manager == null) {
+            return false;
+        }
+
+        if (manager.getConnectionState() == BluetoothProfile.STATE_DISCONNECTED) {
+            // Never got connected, so no disconnect callback will follow.
+            manager.disconnect();
+            onConnectionClosed(manager);
+        } else {
+            manager.disconnect();
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends data to the bluetooth device with the given address.
+     * @param address Address of the device, may be null if only one device is connected.
+     * @param data Data to send.
+     * @return false if the device is not connected.
+     */
+    public boolean sendData(String address, byte[] data) {
+        BluetoothSerialManager manager = getManager(address);
+
+        if (manager == null || manager.getConnectionState() != BluetoothProfile.STATE_CONNECTED) {
+            return false;
         }
+
+        manager.startDataTransfer(data);
+        return true;
     }
 
     /**
-     * Disconnects the current connected device.
+     * Streams a file to the bluetooth device with the given address.
+     * @param address Address of the device, may be null if only one device is connected.
+     * @param uri Uri of the file.
+     * @param resume Continue where an earlier upload of the file to the device
+     *               stopped, and continue after a reconnect.
+     * @return false if the device is not connected.
+     * @throws IOException If the file could not be opened.
      */
-    public void disconnect() {
-        if (bluetoothSerialManager.getConnectionState() == BluetoothProfile.STATE_CONNECTED) {
-            bluetoothSerialManager.disconnect();
+    public boolean uploadFile(String address, Uri uri, boolean resume) throws IOException {
+        BluetoothSerialManager manager = getManager(address);
+
+        if (manager == null || manager.getConnectionState() != BluetoothProfile.STATE_CONNECTED) {
+            return false;
         }
+
+        manager.startFileUpload(uri, resume);
+        return true;
     }
 
     /**
-     * Sends data to the bluetooth device.
+     * Writes a file to the file system of the bluetooth device with the given
+     * address, the module has to be in command mode.
+     * @param address Address of the device, may be null if only one device is connected.
+     * @param uri Uri of the file.
+     * @param window Write commands that may be waiting for a response.
+     * @return false if the device is not connected.
+     * @throws IOException If the file could not be opened.
+     * @throws IllegalStateException If a file is already sent to the device.
      */
-    public void sendData(String data) {
-        if (bluetoothSerialManager.getConnectionState() == BluetoothProfile.STATE_CONNECTED) {
-            bluetoothSerialManager.startDataTransfer(data);
+    public boolean writeModuleFile(String address, Uri uri, int window) throws IOException {
+        BluetoothSerialManager manager = getManager(address);
+
+        if (manager == null || manager.getConnectionState() != BluetoothProfile.STATE_CONNECTED) {
+            return false;
+        }
+
+        manager.startModuleFileWrite(uri, window);
+        return true;
+    }
+
+    /**
+     * Cancels writing a file to the bluetooth device with the given address.
+     * @param address Address of the device, may be null if only one device is connected.
+     * @return false if the device is not connected or no file is written.
+     */
+    public boolean cancelModuleFileWrite(String address) {
+        BluetoothSerialManager manager = getManager(address);
+
+        if (manager == null || !manager.isModuleFileWriting()) {
+            return false;
+        }
+
+        manager.cancelModuleFileWrite();
+        return true;
+    }
+
+    /**
+     * Cancels the file upload to the bluetooth device with the given address.
+     * @param address Address of the device, may be null if only one device is connected.
+     * @return false if the device is not connected or no file is uploaded.
+     */
+    public boolean cancelFileUpload(String address) {
+        BluetoothSerialManager manager = getManager(address);
+
+        if (manager == null || !manager.isFileUploading()) {
+            return false;
+        }
+
+        manager.cancelFileUpload();
+        return true;
+    }
+
+    /**
+     * Changes how data is sent to and received from a bluetooth device.
+     * @param address Address of the device, null to change the options of all
+     *                current and future connections.
+     * @param options Options to change, the other options keep their
+     *                current value.
+     * @return false if the device is not connected.
+     * @throws IllegalArgumentException If one of the options is invalid.
+     */
+    public boolean setTransferOptions(String address, JSObject options) {
+        if (address != null) {
+            BluetoothSerialManager manager = managers.get(normalizeAddress(address));
+
+            if (manager == null) {
+                return false;
+            }
+
+            manager.getTransferOptions().merge(options).applyTo(manager);
+            return true;
+        }
+
+        // Validates the options before any connection is changed.
+        this.transferOptions = transferOptions.merge(options);
+        for (BluetoothSerialManager manager : managers.values()) {
+            manager.getTransferOptions().merge(options).applyTo(manager);
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the manager of the connection with a device.
+     * @param address Address of the device, may be null if only one device is connected.
+     * @return BluetoothSerialManager or null if the device is not connected.
+     */
+    public BluetoothSerialManager getManager(String address) {
+        if (address != null) {
+            return managers.get(normalizeAddress(address));
+        }
+
+        Iterator<BluetoothSerialManager> iterator = managers.values().iterator();
+        BluetoothSerialManager manager = iterator.hasNext() ? iterator.next() : null;
+        return iterator.hasNext() ? null : manager;
+    }
+
+    /**
+     * Addresses are stored in upper case, like Android reports them, so every
+     * entry point accepts them in any case.
+     * @param address Address of a device.
+     * @return The address in upper case, null if the address is null.
+     */
+    private static String normalizeAddress(String address) {
+        return address != null ? address.toUpperCase() : null;
+    }
+
+    /**
+     * Called by a manager once its connection is closed, frees the manager
+     * so the device can be connected again.
+     * @param manager Manager of the closed connection.
+     */
+    void onConnectionClosed(BluetoothSerialManager manager) {
+        String address = manager.getBluetoothDevice().getAddress();
+
+        if (managers.remove(address, manager)) {
+            manager.release();
+            Log.d(TAG, "Closed connection with bluetooth device " + address);
+
+            JSObject js = new JSObject();
+            js.put("address", address);
+            plugin.notifyCapacitorListeners("deviceDisconnectedEvent", js);
         }
     }
 
@@ -117,23 +360,107 @@ public class BluetoothSerial implements BluetoothAdapterHelperCallback {
 
     @Override
     public void onBleStartScan() {
+        if (scanOptions != null && scanOptions.isChangesOnly()) {
+            lostDevicesHandler.postDelayed(lostDevicesCheck, scanOptions.getLostTimeout() / 2);
+        }
+
         JSObject js = new JSObject();
         plugin.notifyCapacitorListeners("discoveryStartEvent", js);
     }
 
     @Override
     public void onBleStopScan() {
+        lostDevicesHandler.removeCallbacks(lostDevicesCheck);
+
         JSObject js = new JSObject();
         plugin.notifyCapacitorListeners("discoveryStopEvent", js);
     }
 
     @Override
     public void onBleDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        ScannedDeviceRegistry.ScannedDevice scannedDevice = scannedDevices.update(device, rssi, scanRecord);
+        if (shouldReport(scannedDevice)) {
+            plugin.notifyCapacitorListeners("deviceFoundEvent", toJSObject(scannedDevice));
+        }
+    }
+
+    @Override
+    public void onBleDevicesFound(List<ScanResult> results) {
+        JSArray devices = new JSArray();
+
+        for (ScanResult result : results) {
+            byte[] scanRecord = result.getScanRecord() != null ? result.getScanRecord().getBytes() : null;
+            ScannedDeviceRegistry.ScannedDevice scannedDevice = scannedDevices.update(result.getDevice(), result.getRssi(), scanRecord);
+            if (shouldReport(scannedDevice)) {
+                devices.put(toJSObject(scannedDevice));
+            }
+        }
+
+        if (devices.length() == 0) {
+            return;
+        }
+
+        JSObject js = new JSObject();
+        js.put("devices", devices);
+        plugin.notifyCapacitorListeners("devicesFoundEvent", js);
+    }
+
+    /**
+     * Checks if a found device should be reported, with changesOnly only new
+     * devices and RSSI changes above the threshold are reported.
+     */
+    private boolean shouldReport(ScannedDeviceRegistry.ScannedDevice scannedDevice) {
+        if (scanOptions == null || !scanOptions.isChangesOnly()) {
+            return true;
+        }
+        return scannedDevice.markReported(scanOptions.getRssiThreshold());
+    }
+
+    /**
+     * Reports the devices that have not been seen for the lost timeout.
+     */
+    private void reportLostDevices() {
+        for (ScannedDeviceRegistry.ScannedDevice scannedDevice : scannedDevices.collectLost(scanOptions.getLostTimeout())) {
+            JSObject js = new JSObject();
+            js.put("address", scannedDevice.getAddress());
+            plugin.notifyCapacitorListeners("deviceLostEvent", js);
+        }
+    }
+
+    private JSObject toJSObject(ScannedDeviceRegistry.ScannedDevice scannedDevice) {
+        BluetoothDevice device = scannedDevice.getDevice();
+        AdvertisementData advertisement = scannedDevice.getAdvertisement();
+        // The advertised name saves a binder call, the cached name is only used without one.
+        String name = advertisement.getLocalName();
+
         JSObject js = new JSObject();
-        js.put("name", device.getName());
-        js.put("type", device.getType());
+        js.put("name", name != null ? name : device.getName());
+        js.put("type", scannedDevice.getType());
         js.put("address", device.getAddress());
-        js.put("rssi", rssi);
-        plugin.notifyCapacitorListeners("deviceFoundEvent", js);
+        js.put("rssi", scannedDevice.getRssi());
+
+        if (advertisement.getFlags() != AdvertisementData.NOT_PRESENT) {
+            js.put("flags", advertisement.getFlags());
+        }
+        if (advertisement.getTxPowerLevel() != AdvertisementData.NOT_PRESENT) {
+            js.put("txPowerLevel", advertisement.getTxPowerLevel());
+        }
+
+        JSArray serviceUuids = new JSArray();
+        for (int i = 0; i < advertisement.getServiceUuidCount(); i++) {
+            serviceUuids.put(advertisement.getServiceUuid(i).toString());
+        }
+        js.put("serviceUuids", serviceUuids);
+
+        JSArray manufacturerData = new JSArray();
+        for (int i = 0; i < advertisement.getManufacturerDataCount(); i++) {
+            JSObject data = new JSObject();
+            data.put("companyId", advertisement.getCompanyId(i));
+            data.put("data", DataEncoding.BASE64.encode(advertisement.getData(),
+                    advertisement.getManufacturerDataOffset(i), advertisement.getManufacturerDataLength(i)));
+            manufacturerData.put(data);
+        }
+        js.put("manufacturerData", manufacturerData);
+        return js;
     }
 }
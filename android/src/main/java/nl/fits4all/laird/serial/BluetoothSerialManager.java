@@ -3,74 +3,290 @@ package nl.fits4all.laird.serial;
 import android.app.Activity;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.Looper;
 
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 
+import java.util.List;
+
 import nl.fits4all.laird.LairdCapacitorPlugin;
-import nl.fits4all.laird.serial.bt.ble.vsp.VirtualSerialPortDevice;
+import nl.fits4all.laird.serial.bt.ble.ConnectionTiming;
+import nl.fits4all.laird.serial.bt.ble.vsp.FileAndFifoAndVspManager;
+import nl.fits4all.laird.serial.bt.ble.vsp.TransferStatistics;
+import nl.fits4all.laird.serial.misc.DataEncoding;
 
-public class BluetoothSerialManager extends VirtualSerialPortDevice {
+public class BluetoothSerialManager extends FileAndFifoAndVspManager
+        implements RxEventBatcher.Listener {
 
     private final LairdCapacitorPlugin plugin;
+    private final BluetoothSerial serial;
+    private DataEncoding receiveEncoding = DataEncoding.UTF8;
+    private RxEventBatcher rxEventBatcher;
+    private TransferOptions transferOptions = new TransferOptions();
+    /**
+     * Milliseconds between two statsEvents, 0 to send none.
+     */
+    private long statsInterval = 0;
+    private final Handler statsHandler = new Handler(Looper.getMainLooper());
+    private final Runnable statsTask = new Runnable() {
+        @Override
+        public void run() {
+            // Only a connection that is set up has statistics.
+            if (getConnectionTiming().isReached(ConnectionTiming.Phase.READY)) {
+                plugin.notifyCapacitorListeners("statsEvent", getStatsJSObject());
+            }
+            statsHandler.postDelayed(this, statsInterval);
+        }
+    };
 
-    public BluetoothSerialManager(LairdCapacitorPlugin plugin, Activity activity) {
+    public BluetoothSerialManager(LairdCapacitorPlugin plugin, Activity activity, BluetoothSerial serial) {
         super(activity);
         this.plugin = plugin;
+        this.serial = serial;
+    }
 
-        SEND_DATA_TO_REMOTE_DEVICE_DELAY = 1;
+    /**
+     * Gets the transfer options that were applied last.
+     * @return TransferOptions
+     */
+    public TransferOptions getTransferOptions() {
+        return transferOptions;
+    }
+
+    void setTransferOptions(TransferOptions transferOptions) {
+        this.transferOptions = transferOptions;
+    }
+
+    /**
+     * Gets the address of the device this manager is connected to.
+     * @return address
+     */
+    public String getAddress() {
+        return getBluetoothDevice() != null ? getBluetoothDevice().getAddress() : null;
+    }
+
+    public DataEncoding getReceiveEncoding() {
+        return receiveEncoding;
+    }
+
+    /**
+     * Sets the encoding of the data in the deviceRecvDataEvent.
+     * @param receiveEncoding Encoding of received data.
+     */
+    public void setReceiveEncoding(DataEncoding receiveEncoding) {
+        this.receiveEncoding = receiveEncoding;
+    }
+
+    /**
+     * Sets the batcher that groups received frames into batch events, null
+     * to send an event for every frame. Frames waiting in the previous
+     * batcher are passed on first.
+     * @param rxEventBatcher Batcher of received frames.
+     */
+    public void setRxEventBatcher(RxEventBatcher rxEventBatcher) {
+        RxEventBatcher previousRxEventBatcher = this.rxEventBatcher;
+        this.rxEventBatcher = rxEventBatcher;
+
+        if (previousRxEventBatcher != null) {
+            previousRxEventBatcher.flush();
+        }
+    }
+
+    public long getStatsInterval() {
+        return statsInterval;
+    }
+
+    /**
+     * Sets how often a statsEvent is sent.
+     * @param statsInterval Milliseconds between two events, 0 to send none.
+     */
+    public void setStatsInterval(long statsInterval) {
+        this.statsInterval = statsInterval;
+        statsHandler.removeCallbacks(statsTask);
+
+        if (statsInterval > 0) {
+            statsHandler.postDelayed(statsTask, statsInterval);
+        }
+    }
+
+    /**
+     * Gets the transfer statistics since the connection was set up. Rates are
+     * in bytes per second and latencies in microseconds.
+     * @return JSObject with the address and the statistics.
+     */
+    public JSObject getStatsJSObject() {
+        TransferStatistics statistics = getStatistics();
+        long[] latencies = statistics.getLatencyPercentiles(50, 90, 99);
+
+        JSObject js = new JSObject();
+        js.put("address", getAddress());
+        js.put("txBytes", statistics.getTxBytes());
+        js.put("rxBytes", statistics.getRxBytes());
+        js.put("txChunks", statistics.getTxChunks());
+        js.put("rxChunks", statistics.getRxChunks());
+        js.put("txRate", statistics.getCurrentTxRate());
+        js.put("rxRate", statistics.getCurrentRxRate());
+        js.put("averageTxRate", statistics.getAverageTxRate());
+        js.put("averageRxRate", statistics.getAverageRxRate());
+        js.put("txQueue", mTxBuffer.getSize());
+        js.put("rxQueue", mRxBuffer.getSize());
+        js.put("writeLatencyP50", latencies[0]);
+        js.put("writeLatencyP90", latencies[1]);
+        js.put("writeLatencyP99", latencies[2]);
+        js.put("stalls", statistics.getStalls());
+        js.put("stallTime", statistics.getStallTime());
+        return js;
     }
 
     @Override
-    public void onVspSendDataSuccess(final BluetoothGatt gatt,
-                                     final BluetoothGattCharacteristic ch) {
-        sendDataHandler.postDelayed(() -> {
-            if (mFifoAndVspManagerState == FifoAndVspManagerState.UPLOADING) {/*
-             * what to do after the data was send successfully
-             */
-                if (isBufferSpaceAvailable()) {
-                    uploadNextDataFromFifoToRemoteDevice();
-                }
-            }
-        }, SEND_DATA_TO_REMOTE_DEVICE_DELAY);
+    public void release() {
+        statsHandler.removeCallbacks(statsTask);
+        super.release();
+    }
+
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        // Pass frames on before the buffers get flushed.
+        if (rxEventBatcher != null && newState != BluetoothProfile.STATE_CONNECTED) {
+            rxEventBatcher.flush();
+        }
+
+        super.onConnectionStateChange(gatt, status, newState);
+
+        if (status != BluetoothGatt.GATT_SUCCESS || newState == BluetoothProfile.STATE_DISCONNECTED) {
+            serial.onConnectionClosed(this);
+        }
     }
 
     @Override
     public void onVspReceiveData(BluetoothGatt gatt,
                                  BluetoothGattCharacteristic ch) {
-        mRxBuffer.write(ch.getStringValue(0));
+        // Responses to the commands of a module file write.
+        if (handleModuleResponse(ch.getValue())) {
+            return;
+        }
 
-        while (mRxBuffer.read(mRxDest) != 0) {
+        mRxBuffer.write(ch.getValue());
+
+        RxEventBatcher batcher = rxEventBatcher;
+        byte[] frame;
+        while ((frame = readNextRxFrame()) != null) {
             /*
-             * found data
+             * found a complete frame
              */
-            String rxBufferDataRead = mRxDest.toString();
-            mRxDest.delete(0, mRxDest.length());
+            if (batcher != null) {
+                batcher.add(frame);
+                continue;
+            }
+
+            String rxBufferDataRead = receiveEncoding.encode(frame);
 
             JSObject js = new JSObject();
+            js.put("address", getAddress());
             js.put("data", rxBufferDataRead);
+            js.put("encoding", receiveEncoding.getName());
             plugin.notifyCapacitorListeners("deviceRecvDataEvent", js);
         }
     }
 
     @Override
-    public void onVspIsBufferSpaceAvailable(
-            boolean isBufferSpaceAvailableOldState,
-            boolean isBufferSpaceAvailableNewState) {
-        if (mFifoAndVspManagerState == FifoAndVspManagerState.UPLOADING) {
-            /*
-             * Callback for what to do when data was send successfully from the
-             * android device and when the module buffer was full and now it has
-             * been cleared, which means it now has available space
-             */
-            if (!isBufferSpaceAvailableOldState
-                    && isBufferSpaceAvailableNewState) {
-                uploadNextDataFromFifoToRemoteDevice();
+    public void onBatch(List<byte[]> frames) {
+        JSArray data = new JSArray();
+        for (byte[] frame : frames) {
+            data.put(receiveEncoding.encode(frame));
+        }
+
+        JSObject js = new JSObject();
+        js.put("address", getAddress());
+        js.put("frames", data);
+        js.put("encoding", receiveEncoding.getName());
+        plugin.notifyCapacitorListeners("deviceRecvDataBatchEvent", js);
+    }
+
+    /**
+     * Gets the time of every phase of the last connection setup, in
+     * milliseconds since the connection was requested. Phases that were not
+     * reached are left out.
+     * @return JSObject with the address and a field for every phase.
+     */
+    public JSObject getConnectionTimingJSObject() {
+        JSObject js = new JSObject();
+        js.put("address", getAddress());
+
+        for (ConnectionTiming.Phase phase : ConnectionTiming.Phase.values()) {
+            long elapsed = mConnectionTiming.getElapsed(phase);
+            if (elapsed >= 0) {
+                js.put(phase.getName(), elapsed);
             }
         }
+
+        return js;
+    }
+
+    @Override
+    protected void onConnectionReady() {
+        super.onConnectionReady();
+        plugin.notifyCapacitorListeners("connectionTimingEvent", getConnectionTimingJSObject());
     }
 
     @Override
-    public void onUploaded() {
-        super.onUploaded();
+    protected void onFileUploadProgress(long bytesSent, long totalBytes) {
+        JSObject js = new JSObject();
+        js.put("address", getAddress());
+        js.put("bytesSent", bytesSent);
+        js.put("totalBytes", totalBytes);
+        plugin.notifyCapacitorListeners("fileUploadProgressEvent", js);
+    }
+
+    @Override
+    protected void onFileUploadCompleted(long bytesSent) {
+        JSObject js = new JSObject();
+        js.put("address", getAddress());
+        js.put("success", true);
+        js.put("bytesSent", bytesSent);
+        plugin.notifyCapacitorListeners("fileUploadFinishedEvent", js);
+    }
+
+    @Override
+    protected void onFileUploadFailed(String reason) {
+        JSObject js = new JSObject();
+        js.put("address", getAddress());
+        js.put("success", false);
+        js.put("error", reason);
+        plugin.notifyCapacitorListeners("fileUploadFinishedEvent", js);
+    }
+
+    @Override
+    protected void onModuleFileWriteProgress(long bytesWritten, long totalBytes) {
+        JSObject js = new JSObject();
+        js.put("address", getAddress());
+        js.put("bytesWritten", bytesWritten);
+        js.put("totalBytes", totalBytes);
+        plugin.notifyCapacitorListeners("moduleFileWriteProgressEvent", js);
+    }
+
+    @Override
+    protected void onModuleFileWriteCompleted(String moduleFileName, long bytesWritten) {
+        JSObject js = new JSObject();
+        js.put("address", getAddress());
+        js.put("success", true);
+        js.put("fileName", moduleFileName);
+        js.put("bytesWritten", bytesWritten);
+        plugin.notifyCapacitorListeners("moduleFileWriteFinishedEvent", js);
+    }
+
+    @Override
+    protected void onModuleFileWriteFailed(String errorCode, String reason) {
+        JSObject js = new JSObject();
+        js.put("address", getAddress());
+        js.put("success", false);
+        if (errorCode != null) {
+            js.put("errorCode", errorCode);
+        }
+        js.put("error", reason);
+        plugin.notifyCapacitorListeners("moduleFileWriteFinishedEvent", js);
     }
 }
\ No newline at end of file
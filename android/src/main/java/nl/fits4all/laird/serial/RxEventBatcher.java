@@ -0,0 +1,88 @@
+package nl.fits4all.laird.serial;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Groups received frames so they can be passed to javascript in a single
+ * event. A batch is passed on once it holds maxFrames frames or maxBytes
+ * bytes, or when the first frame of the batch is maxLatency milliseconds old.
+ */
+public class RxEventBatcher {
+
+    public interface Listener {
+        /**
+         * Called with a batch of frames, in the order they were received.
+         * @param frames Frames of the batch.
+         */
+        void onBatch(List<byte[]> frames);
+    }
+
+    private final int maxBytes;
+    private final int maxFrames;
+    private final long maxLatency;
+    private final Listener listener;
+
+    private final Handler latencyHandler = new Handler(Looper.getMainLooper());
+    private final Runnable latencyRunnable = this::flush;
+
+    private final List<byte[]> frames = new ArrayList<>();
+    private int bytes = 0;
+
+    /**
+     * @param maxBytes Total bytes that make a batch full.
+     * @param maxFrames Total frames that make a batch full.
+     * @param maxLatency Milliseconds a frame may wait in a batch.
+     * @param listener Listener to pass the batches to.
+     */
+    public RxEventBatcher(int maxBytes, int maxFrames, long maxLatency, Listener listener) {
+        if (maxBytes <= 0 || maxFrames <= 0 || maxLatency <= 0) {
+            throw new IllegalArgumentException("Batching limits must be positive.");
+        }
+
+        this.maxBytes = maxBytes;
+        this.maxFrames = maxFrames;
+        this.maxLatency = maxLatency;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a frame to the current batch, the batch is passed on immediately
+     * if it is full.
+     * @param frame Received frame.
+     */
+    public synchronized void add(byte[] frame) {
+        frames.add(frame);
+        bytes += frame.length;
+
+        if (frames.size() == 1) {
+            latencyHandler.postDelayed(latencyRunnable, maxLatency);
+        }
+
+        if (frames.size() >= maxFrames || bytes >= maxBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Passes the current batch on, if it holds any frames. The listener is
+     * called while holding the lock so batches are never passed on out of
+     * order.
+     */
+    public synchronized void flush() {
+        latencyHandler.removeCallbacks(latencyRunnable);
+
+        if (frames.isEmpty()) {
+            return;
+        }
+
+        List<byte[]> batch = new ArrayList<>(frames);
+        frames.clear();
+        bytes = 0;
+
+        listener.onBatch(batch);
+    }
+}
@@ -0,0 +1,295 @@
+package nl.fits4all.laird.serial;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.getcapacitor.JSObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import nl.fits4all.laird.serial.bt.ble.vsp.VirtualSerialPortDevice;
+import nl.fits4all.laird.serial.misc.DataEncoding;
+
+/**
+ * Options for discovering devices, as passed to the startDiscovering plugin
+ * method. The filters are handed to the bluetooth controller so devices that
+ * don't match never wake up the app.
+ * <p>
+ * A device has to match one entry of every filter list that is given, so
+ * the lists are combined with AND and the entries of a list with OR.
+ */
+public class ScanOptions {
+
+    /**
+     * Short UUIDs are relative to the bluetooth base UUID.
+     */
+    private static final String BASE_UUID_SUFFIX = "-0000-1000-8000-00805f9b34fb";
+
+    /**
+     * Manufacturer specific data a device should advertise.
+     */
+    public static class ManufacturerData {
+        private final int companyId;
+        private final byte[] data;
+        private final byte[] mask;
+
+        public ManufacturerData(int companyId, byte[] data, byte[] mask) {
+            this.companyId = companyId;
+            this.data = data;
+            this.mask = mask;
+        }
+    }
+
+    private boolean periodically = true;
+    private List<UUID> services = Collections.singletonList(VirtualSerialPortDevice.VSP_SERVICE);
+    private List<String> names = Collections.emptyList();
+    private List<String> addresses = Collections.emptyList();
+    private List<ManufacturerData> manufacturerData = Collections.emptyList();
+    private int scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+    private int matchMode = ScanSettings.MATCH_MODE_AGGRESSIVE;
+    private long reportDelay = 0;
+    private long scanWindow = 8 * 1000;
+    private long scanInterval = 10 * 1000;
+    private boolean changesOnly = false;
+    private int rssiThreshold = 5;
+    private long lostTimeout = 10 * 1000;
+
+    /**
+     * Reads the options from the data of a plugin call, options that are not
+     * given get their default value. Only devices with the VSP service are
+     * found unless other services or an empty list is given.
+     * @param options Data of the plugin call.
+     * @return ScanOptions
+     * @throws IllegalArgumentException If one of the options is invalid.
+     */
+    public static ScanOptions fromJSObject(JSObject options) {
+        ScanOptions scanOptions = new ScanOptions();
+        scanOptions.periodically = options.optBoolean("periodically", true);
+
+        JSONArray services = options.optJSONArray("services");
+        if (services != null) {
+            scanOptions.services = new ArrayList<>();
+            for (String service : toStringList(services, "services")) {
+                scanOptions.services.add(parseUuid(service));
+            }
+        }
+
+        JSONArray names = options.optJSONArray("names");
+        if (names != null) {
+            scanOptions.names = toStringList(names, "names");
+        }
+
+        JSONArray addresses = options.optJSONArray("addresses");
+        if (addresses != null) {
+            scanOptions.addresses = new ArrayList<>();
+            for (String address : toStringList(addresses, "addresses")) {
+                // Addresses are compared case sensitive by the controller.
+                scanOptions.addresses.add(address.toUpperCase());
+            }
+        }
+
+        JSONArray manufacturerData = options.optJSONArray("manufacturerData");
+        if (manufacturerData != null) {
+            scanOptions.manufacturerData = new ArrayList<>();
+            for (int i = 0; i < manufacturerData.length(); i++) {
+                JSONObject filter = manufacturerData.optJSONObject(i);
+                if (filter == null || !filter.has("companyId")) {
+                    throw new IllegalArgumentException("Every manufacturerData filter needs a companyId.");
+                }
+
+                byte[] data = DataEncoding.BASE64.decode(filter.optString("data", ""));
+                String maskString = filter.optString("mask", null);
+                byte[] mask = maskString != null ? DataEncoding.BASE64.decode(maskString) : null;
+                if (mask != null && mask.length != data.length) {
+                    throw new IllegalArgumentException("The manufacturerData mask must be as long as the data.");
+                }
+
+                scanOptions.manufacturerData.add(new ManufacturerData(filter.optInt("companyId", 0), data, mask));
+            }
+        }
+
+        String scanMode = options.optString("scanMode", "lowLatency");
+        if ("lowPower".equals(scanMode)) {
+            scanOptions.scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+        } else if ("balanced".equals(scanMode)) {
+            scanOptions.scanMode = ScanSettings.SCAN_MODE_BALANCED;
+        } else if ("lowLatency".equals(scanMode)) {
+            scanOptions.scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+        } else if ("opportunistic".equals(scanMode)) {
+            scanOptions.scanMode = ScanSettings.SCAN_MODE_OPPORTUNISTIC;
+        } else {
+            throw new IllegalArgumentException("Unknown scan mode: " + scanMode);
+        }
+
+        String matchMode = options.optString("matchMode", "aggressive");
+        if ("aggressive".equals(matchMode)) {
+            scanOptions.matchMode = ScanSettings.MATCH_MODE_AGGRESSIVE;
+        } else if ("sticky".equals(matchMode)) {
+            scanOptions.matchMode = ScanSettings.MATCH_MODE_STICKY;
+        } else {
+            throw new IllegalArgumentException("Unknown match mode: " + matchMode);
+        }
+
+        scanOptions.reportDelay = options.optLong("reportDelay", 0);
+        if (scanOptions.reportDelay < 0) {
+            throw new IllegalArgumentException("The report delay can't be negative.");
+        }
+
+        scanOptions.scanWindow = options.optLong("scanWindow", scanOptions.scanWindow);
+        scanOptions.scanInterval = options.optLong("scanInterval", Math.max(scanOptions.scanWindow, scanOptions.scanInterval));
+        if (scanOptions.scanWindow <= 0 || scanOptions.scanInterval < scanOptions.scanWindow) {
+            throw new IllegalArgumentException("The scan window must be positive and not longer than the scan interval.");
+        }
+
+        scanOptions.changesOnly = options.optBoolean("changesOnly", false);
+        scanOptions.rssiThreshold = options.optInt("rssiThreshold", scanOptions.rssiThreshold);
+        scanOptions.lostTimeout = options.optLong("lostTimeout", scanOptions.lostTimeout);
+        if (scanOptions.rssiThreshold < 0 || scanOptions.lostTimeout <= 0) {
+            throw new IllegalArgumentException("The RSSI threshold can't be negative and the lost timeout must be positive.");
+        }
+
+        return scanOptions;
+    }
+
+    public boolean isPeriodically() {
+        return periodically;
+    }
+
+    /**
+     * @return Milliseconds to collect devices before reporting them in one
+     * event, 0 to report every device immediately.
+     */
+    public long getReportDelay() {
+        return reportDelay;
+    }
+
+    /**
+     * @return Milliseconds the scan runs every scan interval when scanning
+     * periodically.
+     */
+    public long getScanWindow() {
+        return scanWindow;
+    }
+
+    /**
+     * @return Milliseconds between two scan starts when scanning periodically.
+     */
+    public long getScanInterval() {
+        return scanInterval;
+    }
+
+    /**
+     * @return True if a device is only reported when it's found, lost or its
+     * RSSI changed more than the threshold.
+     */
+    public boolean isChangesOnly() {
+        return changesOnly;
+    }
+
+    /**
+     * @return Change of the RSSI in dB that is reported when only changes are
+     * reported.
+     */
+    public int getRssiThreshold() {
+        return rssiThreshold;
+    }
+
+    /**
+     * @return Milliseconds without advertisements after which a device is
+     * reported as lost when only changes are reported.
+     */
+    public long getLostTimeout() {
+        return lostTimeout;
+    }
+
+    /**
+     * Builds the filters for the bluetooth controller, one filter for every
+     * combination of the entries of the filter lists.
+     * @return ScanFilters or an empty list to find all devices.
+     */
+    public List<ScanFilter> createScanFilters() {
+        List<ScanFilter> filters = new ArrayList<>();
+        if (services.isEmpty() && names.isEmpty() && addresses.isEmpty() && manufacturerData.isEmpty()) {
+            return filters;
+        }
+
+        // A null entry stands for a list that is not filtered on.
+        for (UUID service : orAny(services)) {
+            for (String name : orAny(names)) {
+                for (String address : orAny(addresses)) {
+                    for (ManufacturerData data : orAny(manufacturerData)) {
+                        ScanFilter.Builder builder = new ScanFilter.Builder();
+                        if (service != null) {
+                            builder.setServiceUuid(new ParcelUuid(service));
+                        }
+                        if (name != null) {
+                            builder.setDeviceName(name);
+                        }
+                        if (address != null) {
+                            builder.setDeviceAddress(address);
+                        }
+                        if (data != null) {
+                            builder.setManufacturerData(data.companyId, data.data, data.mask);
+                        }
+                        filters.add(builder.build());
+                    }
+                }
+            }
+        }
+
+        return filters;
+    }
+
+    /**
+     * Builds the settings for the bluetooth controller.
+     * @param offloadedBatching True if the controller batches the scan
+     *                          results, the report delay is then passed on.
+     * @return ScanSettings
+     */
+    public ScanSettings createScanSettings(boolean offloadedBatching) {
+        return new ScanSettings.Builder()
+                .setScanMode(scanMode)
+                .setMatchMode(matchMode)
+                .setReportDelay(offloadedBatching ? reportDelay : 0)
+                .build();
+    }
+
+    private static <T> List<T> orAny(List<T> list) {
+        return list.isEmpty() ? Collections.<T>singletonList(null) : list;
+    }
+
+    private static List<String> toStringList(JSONArray array, String name) {
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+            String value = array.optString(i);
+            if (array.isNull(i) || value == null || value.isEmpty()) {
+                throw new IllegalArgumentException("Invalid entry in " + name + ".");
+            }
+            list.add(value);
+        }
+        return list;
+    }
+
+    /**
+     * Parses a full UUID or a 16 or 32 bit short UUID.
+     */
+    private static UUID parseUuid(String uuid) {
+        try {
+            if (uuid.length() == 4) {
+                return UUID.fromString("0000" + uuid + BASE_UUID_SUFFIX);
+            } else if (uuid.length() == 8) {
+                return UUID.fromString(uuid + BASE_UUID_SUFFIX);
+            }
+            return UUID.fromString(uuid);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid service UUID: " + uuid);
+        }
+    }
+}
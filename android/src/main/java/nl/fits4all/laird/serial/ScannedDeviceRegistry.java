@@ -0,0 +1,239 @@
+package nl.fits4all.laird.serial;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the devices found while discovering, keyed by address. Every device
+ * is stored once and updated with each advertisement it sends. The registry
+ * is bounded, devices that have not been seen for the time to live are
+ * evicted and once the maximum is reached the least recently seen device
+ * makes room for a new one.
+ */
+public class ScannedDeviceRegistry {
+
+    /**
+     * A device found while discovering.
+     */
+    public static class ScannedDevice {
+        private static final int TYPE_NOT_LOADED = -1;
+
+        private final BluetoothDevice device;
+        private int type = TYPE_NOT_LOADED;
+        private int rssi;
+        private long lastSeen;
+        private byte[] scanRecord;
+        private final AdvertisementData advertisement = new AdvertisementData();
+        private boolean reported = false;
+        private int reportedRssi;
+
+        ScannedDevice(BluetoothDevice device) {
+            this.device = device;
+        }
+
+        public BluetoothDevice getDevice() {
+            return device;
+        }
+
+        public String getAddress() {
+            return device.getAddress();
+        }
+
+        /**
+         * @return The device type, only looked up once as every lookup is a
+         * binder call.
+         */
+        public int getType() {
+            if (type == TYPE_NOT_LOADED) {
+                type = device.getType();
+            }
+            return type;
+        }
+
+        public int getRssi() {
+            return rssi;
+        }
+
+        /**
+         * @return Time the device was last seen, in milliseconds since boot.
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        /**
+         * @return The raw advertisement data of the last advertisement.
+         */
+        public byte[] getScanRecord() {
+            return scanRecord;
+        }
+
+        /**
+         * @return The parsed last advertisement, reused for every
+         * advertisement of the device.
+         */
+        public AdvertisementData getAdvertisement() {
+            return advertisement;
+        }
+
+        /**
+         * @return True if the device was reported and has not been lost since.
+         */
+        public boolean isReported() {
+            return reported;
+        }
+
+        /**
+         * Checks if the device should be reported again and marks it as
+         * reported if so.
+         * @param rssiThreshold Change of the RSSI in dB since the last report
+         *                      that is reported.
+         * @return True if the device was not reported yet or its RSSI changed
+         * more than the threshold.
+         */
+        public boolean markReported(int rssiThreshold) {
+            if (reported && Math.abs(rssi - reportedRssi) <= rssiThreshold) {
+                return false;
+            }
+
+            reported = true;
+            reportedRssi = rssi;
+            return true;
+        }
+    }
+
+    private final int maxDevices;
+    private final long timeToLive;
+    /**
+     * Ordered from least to most recently seen.
+     */
+    private final LinkedHashMap<String, ScannedDevice> devices;
+
+    /**
+     * @param maxDevices Maximum devices to keep.
+     * @param timeToLive Milliseconds a device is kept after it was last seen.
+     */
+    public ScannedDeviceRegistry(int maxDevices, long timeToLive) {
+        if (maxDevices <= 0 || timeToLive <= 0) {
+            throw new IllegalArgumentException("Registry limits must be positive.");
+        }
+
+        this.maxDevices = maxDevices;
+        this.timeToLive = timeToLive;
+        this.devices = new LinkedHashMap<String, ScannedDevice>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ScannedDevice> eldest) {
+                return size() > ScannedDeviceRegistry.this.maxDevices;
+            }
+        };
+    }
+
+    /**
+     * Stores or updates a device with the advertisement it sent.
+     * @param device Device that was found.
+     * @param rssi RSSI of the advertisement.
+     * @param scanRecord Raw advertisement data.
+     * @return The stored device.
+     */
+    public synchronized ScannedDevice update(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        long now = SystemClock.elapsedRealtime();
+        // Removed and put back so the device moves to the most recently seen end.
+        ScannedDevice scannedDevice = devices.remove(device.getAddress());
+
+        if (scannedDevice == null) {
+            evictExpired(now);
+            scannedDevice = new ScannedDevice(device);
+        }
+
+        devices.put(device.getAddress(), scannedDevice);
+
+        scannedDevice.rssi = rssi;
+        scannedDevice.lastSeen = now;
+        scannedDevice.scanRecord = scanRecord;
+        scannedDevice.advertisement.parse(scanRecord);
+        return scannedDevice;
+    }
+
+    /**
+     * Gets a device that was found while discovering.
+     * @param address Address of the device.
+     * @return ScannedDevice or null if the device was not found or has expired.
+     */
+    public synchronized ScannedDevice get(String address) {
+        ScannedDevice scannedDevice = devices.get(address);
+
+        if (scannedDevice != null && isExpired(scannedDevice, SystemClock.elapsedRealtime())) {
+            devices.remove(address);
+            return null;
+        }
+
+        return scannedDevice;
+    }
+
+    /**
+     * Collects the reported devices that have not been seen for the lost
+     * timeout, they are no longer marked as reported.
+     * @param lostTimeout Milliseconds after which a device is lost.
+     * @return The lost devices.
+     */
+    public synchronized List<ScannedDevice> collectLost(long lostTimeout) {
+        long now = SystemClock.elapsedRealtime();
+        List<ScannedDevice> lost = new ArrayList<>();
+
+        for (ScannedDevice scannedDevice : devices.values()) {
+            // Least recently seen first, so stop at the first device that is still in range.
+            if (now - scannedDevice.lastSeen <= lostTimeout) {
+                break;
+            }
+            if (scannedDevice.reported) {
+                scannedDevice.reported = false;
+                lost.add(scannedDevice);
+            }
+        }
+
+        return lost;
+    }
+
+    /**
+     * Marks all devices as not reported, so they are reported again.
+     */
+    public synchronized void clearReported() {
+        for (ScannedDevice scannedDevice : devices.values()) {
+            scannedDevice.reported = false;
+        }
+    }
+
+    /**
+     * Removes all devices that have not been seen for the time to live.
+     */
+    public synchronized void evictExpired() {
+        evictExpired(SystemClock.elapsedRealtime());
+    }
+
+    public synchronized int size() {
+        return devices.size();
+    }
+
+    public synchronized void clear() {
+        devices.clear();
+    }
+
+    private void evictExpired(long now) {
+        Iterator<ScannedDevice> iterator = devices.values().iterator();
+
+        // Least recently seen first, so stop at the first device that is still valid.
+        while (iterator.hasNext() && isExpired(iterator.next(), now)) {
+            iterator.remove();
+        }
+    }
+
+    private boolean isExpired(ScannedDevice scannedDevice, long now) {
+        return now - scannedDevice.lastSeen > timeToLive;
+    }
+}
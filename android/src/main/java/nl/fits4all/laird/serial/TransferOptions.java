@@ -0,0 +1,271 @@
+package nl.fits4all.laird.serial;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.json.JSONObject;
+
+import com.getcapacitor.JSObject;
+
+import nl.fits4all.laird.serial.misc.DataEncoding;
+import nl.fits4all.laird.serial.misc.DelimiterFramer;
+import nl.fits4all.laird.serial.misc.FifoQueue;
+import nl.fits4all.laird.serial.misc.FixedLengthFramer;
+import nl.fits4all.laird.serial.misc.Framer;
+import nl.fits4all.laird.serial.misc.LengthPrefixFramer;
+import nl.fits4all.laird.serial.misc.RawFramer;
+
+/**
+ * Options for how data is sent to and received from the bluetooth device, as
+ * passed to the setTransferOptions plugin method.
+ */
+public class TransferOptions {
+
+    public enum Framing {
+        NONE("none"), DELIMITER("delimiter"), FIXED_LENGTH("fixedLength"), LENGTH_PREFIX("lengthPrefix");
+
+        private final String typeName;
+
+        Framing(String typeName) {
+            this.typeName = typeName;
+        }
+
+        public static Framing fromName(String name) {
+            for (Framing framing : values()) {
+                if (framing.typeName.equals(name)) {
+                    return framing;
+                }
+            }
+
+            throw new IllegalArgumentException("Unknown framing type: " + name);
+        }
+    }
+
+    private boolean writeWithoutResponse = false;
+    private long pacingDelay = 0;
+    private DataEncoding receiveEncoding = DataEncoding.UTF8;
+    private boolean highThroughput = false;
+    private int idleConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+
+    private Framing framing = Framing.NONE;
+    private byte[] frameDelimiter;
+    private int frameLength;
+    private int maxFrameLength;
+    private int prefixLength = 1;
+    private boolean littleEndian = false;
+
+    private boolean batching = false;
+    private int batchMaxBytes = 4096;
+    private int batchMaxFrames = 64;
+    private long batchMaxLatency = 50;
+
+    private long statsInterval = 0;
+
+    /**
+     * Creates the default options.
+     */
+    public TransferOptions() {
+    }
+
+    private TransferOptions(TransferOptions other) {
+        writeWithoutResponse = other.writeWithoutResponse;
+        pacingDelay = other.pacingDelay;
+        receiveEncoding = other.receiveEncoding;
+        highThroughput = other.highThroughput;
+        idleConnectionPriority = other.idleConnectionPriority;
+        framing = other.framing;
+        frameDelimiter = other.frameDelimiter;
+        frameLength = other.frameLength;
+        maxFrameLength = other.maxFrameLength;
+        prefixLength = other.prefixLength;
+        littleEndian = other.littleEndian;
+        batching = other.batching;
+        batchMaxBytes = other.batchMaxBytes;
+        batchMaxFrames = other.batchMaxFrames;
+        batchMaxLatency = other.batchMaxLatency;
+        statsInterval = other.statsInterval;
+    }
+
+    /**
+     * Reads the options from the data of a plugin call on top of these
+     * options, options that are not given keep their current value. A given
+     * framing or batching object replaces the whole framing or batching, its
+     * missing fields get their default value. Batching is turned off with
+     * batching set to false.
+     * @param options Data of the plugin call.
+     * @return New TransferOptions, these options are not changed.
+     * @throws IllegalArgumentException If one of the options is invalid.
+     */
+    public TransferOptions merge(JSObject options) {
+        TransferOptions transferOptions = new TransferOptions(this);
+
+        if (options.has("writeWithoutResponse")) {
+            transferOptions.writeWithoutResponse = options.optBoolean("writeWithoutResponse", false);
+        }
+        if (options.has("pacingDelay")) {
+            transferOptions.pacingDelay = options.optLong("pacingDelay", 0);
+            if (transferOptions.pacingDelay < 0) {
+                throw new IllegalArgumentException("The pacing delay can't be negative.");
+            }
+        }
+        if (options.has("encoding")) {
+            transferOptions.receiveEncoding = DataEncoding.fromName(options.optString("encoding", null), DataEncoding.UTF8);
+        }
+        if (options.has("highThroughput")) {
+            transferOptions.highThroughput = options.optBoolean("highThroughput", false);
+        }
+
+        if (options.has("idlePriority")) {
+            String idlePriority = options.optString("idlePriority", "balanced");
+            if ("balanced".equals(idlePriority)) {
+                transferOptions.idleConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+            } else if ("lowPower".equals(idlePriority)) {
+                transferOptions.idleConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+            } else {
+                throw new IllegalArgumentException("Unknown idle priority: " + idlePriority);
+            }
+        }
+
+        JSONObject framing = options.optJSONObject("framing");
+        if (framing != null) {
+            transferOptions.framing = Framing.fromName(framing.optString("type", Framing.NONE.typeName));
+
+            String delimiter = framing.optString("delimiter", null);
+            transferOptions.frameDelimiter = delimiter != null ? delimiter.getBytes(FifoQueue.CHARSET) : null;
+            transferOptions.frameLength = framing.optInt("length", 0);
+            transferOptions.maxFrameLength = framing.optInt("maxLength", 0);
+            if (transferOptions.maxFrameLength < 0) {
+                throw new IllegalArgumentException("Invalid maximum frame length: " + transferOptions.maxFrameLength);
+            }
+            transferOptions.prefixLength = framing.optInt("prefixLength", 1);
+            transferOptions.littleEndian = framing.optBoolean("littleEndian", false);
+
+            transferOptions.checkFraming();
+        }
+
+        if (options.has("batching")) {
+            JSONObject batching = options.optJSONObject("batching");
+            transferOptions.batching = batching != null;
+
+            if (batching != null) {
+                transferOptions.batchMaxBytes = batching.optInt("maxBytes", 4096);
+                transferOptions.batchMaxFrames = batching.optInt("maxFrames", 64);
+                transferOptions.batchMaxLatency = batching.optLong("maxLatency", 50);
+
+                if (transferOptions.batchMaxBytes <= 0 || transferOptions.batchMaxFrames <= 0
+                        || transferOptions.batchMaxLatency <= 0) {
+                    throw new IllegalArgumentException("Batching limits must be positive.");
+                }
+            }
+        }
+
+        if (options.has("statsInterval")) {
+            transferOptions.statsInterval = options.optLong("statsInterval", 0);
+            if (transferOptions.statsInterval < 0) {
+                throw new IllegalArgumentException("The stats interval can't be negative.");
+            }
+        }
+
+        return transferOptions;
+    }
+
+    /**
+     * Checks the framing options, so creating a framer can't fail later.
+     * @throws IllegalArgumentException If one of the framing options is invalid.
+     */
+    private void checkFraming() {
+        switch (framing) {
+            case DELIMITER:
+                if (frameDelimiter == null || frameDelimiter.length == 0) {
+                    throw new IllegalArgumentException("Delimiter can't be empty");
+                }
+                break;
+            case FIXED_LENGTH:
+                if (frameLength <= 0) {
+                    throw new IllegalArgumentException("Invalid frame length: " + frameLength);
+                }
+                break;
+            case LENGTH_PREFIX:
+                if (prefixLength < 1 || prefixLength > 4) {
+                    throw new IllegalArgumentException("Invalid prefix length: " + prefixLength);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    public boolean isWriteWithoutResponse() {
+        return writeWithoutResponse;
+    }
+
+    public long getPacingDelay() {
+        return pacingDelay;
+    }
+
+    public DataEncoding getReceiveEncoding() {
+        return receiveEncoding;
+    }
+
+    public boolean isHighThroughput() {
+        return highThroughput;
+    }
+
+    public int getIdleConnectionPriority() {
+        return idleConnectionPriority;
+    }
+
+    public Framing getFraming() {
+        return framing;
+    }
+
+    public long getStatsInterval() {
+        return statsInterval;
+    }
+
+    /**
+     * Creates a new framer, every connection needs its own as framers keep
+     * track of the data they searched.
+     * @return Framer
+     */
+    public Framer createFramer() {
+        switch (framing) {
+            case DELIMITER:
+                return new DelimiterFramer(frameDelimiter, maxFrameLength);
+            case FIXED_LENGTH:
+                return new FixedLengthFramer(frameLength);
+            case LENGTH_PREFIX:
+                return new LengthPrefixFramer(prefixLength, littleEndian, maxFrameLength);
+            default:
+                return new RawFramer();
+        }
+    }
+
+    /**
+     * Creates a new batcher for received frames, if batching is enabled.
+     * @param listener Listener to pass the batches to.
+     * @return RxEventBatcher or null if batching is disabled.
+     */
+    public RxEventBatcher createRxEventBatcher(RxEventBatcher.Listener listener) {
+        if (!batching) {
+            return null;
+        }
+
+        return new RxEventBatcher(batchMaxBytes, batchMaxFrames, batchMaxLatency, listener);
+    }
+
+    /**
+     * Applies the options to the connection with a bluetooth device.
+     * @param manager Manager of the connection.
+     */
+    public void applyTo(BluetoothSerialManager manager) {
+        manager.setTransferOptions(this);
+        manager.setWriteWithoutResponse(writeWithoutResponse);
+        manager.setPacingDelay(pacingDelay);
+        manager.setReceiveEncoding(receiveEncoding);
+        manager.setHighThroughput(highThroughput);
+        manager.setIdleConnectionPriority(idleConnectionPriority);
+        manager.setRxFramer(createFramer());
+        manager.setRxEventBatcher(createRxEventBatcher(manager));
+        manager.setStatsInterval(statsInterval);
+    }
+}
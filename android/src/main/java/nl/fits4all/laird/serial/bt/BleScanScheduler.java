@@ -0,0 +1,110 @@
+package nl.fits4all.laird.serial.bt;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps track of when BLE scans were started so the platform limits are
+ * never exceeded, and of the duty cycle of periodical scans.
+ * <p>
+ * Android allows an app to start at most {@link #MAX_SCAN_STARTS} scans per
+ * {@link #SCAN_STARTS_PERIOD}, any start beyond that silently turns the scan
+ * into an opportunistic scan that hardly reports anything. Starts that would
+ * exceed the limit are therefore postponed until the oldest start in the
+ * period has expired.
+ */
+public class BleScanScheduler {
+	/**
+	 * the maximum scans an app may start per {@link #SCAN_STARTS_PERIOD}
+	 */
+	public static final int MAX_SCAN_STARTS = 5;
+	/**
+	 * the period in milliseconds the scan starts are counted in
+	 */
+	public static final long SCAN_STARTS_PERIOD = 30 * 1000;
+	/**
+	 * extra time in milliseconds before a postponed start, so the start is
+	 * never counted in the period it was postponed for
+	 */
+	private static final long SCAN_START_MARGIN = 100;
+
+	/**
+	 * times in milliseconds since boot of the scan starts in the last
+	 * {@link #SCAN_STARTS_PERIOD}, oldest first
+	 */
+	private final ArrayDeque<Long> mScanStartTimes = new ArrayDeque<>();
+
+	private long mScanWindow = 8 * 1000;
+	private long mScanInterval = 10 * 1000;
+
+	/**
+	 * sets the duty cycle of periodical scans, every scan interval the scan
+	 * runs for the scan window and is paused for the rest of the interval.
+	 * Intervals that would start scans more often than the platform allows
+	 * are stretched by postponing the starts
+	 *
+	 * @param scanWindow
+	 *            the time in milliseconds the scan runs every interval
+	 * @param scanInterval
+	 *            the time in milliseconds between two scan starts, equal to
+	 *            the scan window to scan continuously
+	 */
+	public synchronized void setDutyCycle(long scanWindow, long scanInterval) {
+		if (scanWindow <= 0 || scanInterval < scanWindow) {
+			throw new IllegalArgumentException("Invalid scan window/interval: " + scanWindow + "/" + scanInterval);
+		}
+
+		mScanWindow = scanWindow;
+		mScanInterval = scanInterval;
+	}
+
+	public synchronized long getScanWindow() {
+		return mScanWindow;
+	}
+
+	public synchronized long getScanInterval() {
+		return mScanInterval;
+	}
+
+	/**
+	 * @return true if the scan is never paused, so it's only started once
+	 */
+	public synchronized boolean isContinuous() {
+		return mScanWindow >= mScanInterval;
+	}
+
+	/**
+	 * gets the time to wait before a scan can be started without exceeding
+	 * the platform limits
+	 *
+	 * @param now
+	 *            the current time in milliseconds since boot
+	 * @return the time in milliseconds to wait, 0 if the scan can be started
+	 *         right away
+	 */
+	public synchronized long getStartDelay(long now) {
+		removeExpiredStarts(now);
+
+		if (mScanStartTimes.size() < MAX_SCAN_STARTS) {
+			return 0;
+		}
+
+		return mScanStartTimes.peekFirst() + SCAN_STARTS_PERIOD - now + SCAN_START_MARGIN;
+	}
+
+	/**
+	 * records a scan start, call this whenever a scan is started
+	 *
+	 * @param now
+	 *            the current time in milliseconds since boot
+	 */
+	public synchronized void onScanStarted(long now) {
+		removeExpiredStarts(now);
+		mScanStartTimes.addLast(now);
+	}
+
+	private void removeExpiredStarts(long now) {
+		while (!mScanStartTimes.isEmpty() && now - mScanStartTimes.peekFirst() >= SCAN_STARTS_PERIOD) {
+			mScanStartTimes.removeFirst();
+		}
+	}
+}
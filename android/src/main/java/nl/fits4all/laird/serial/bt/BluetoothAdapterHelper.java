@@ -6,12 +6,20 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.os.Build;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
 /**
  * This class is a wrapper for the androids bluetooth low energy.
  * - BluetoothAdapter < 21 API
@@ -27,12 +35,52 @@ public class BluetoothAdapterHelper {
 	private final BluetoothAdapterHelperCallback mBluetoothAdapterHelperCallback;
 
 	private static long BLE_SCAN_TIMEOUT = 30 * 1000;
-	private static long BLE_SCAN_PERIODICAL_INTERVAL = 1000;
+	/**
+	 * delay before starting the scan again after the controller refused it
+	 */
+	private static final long BLE_SCAN_RETRY_DELAY = BleScanScheduler.SCAN_STARTS_PERIOD / BleScanScheduler.MAX_SCAN_STARTS;
+	/**
+	 * the starts that may be retried in a row, every retry counts as a scan
+	 * start towards the platform limit
+	 */
+	private static final int MAX_SCAN_RETRIES = 3;
+	/**
+	 * ScanCallback.SCAN_FAILED_SCANNING_TOO_FREQUENTLY, only public since API
+	 * level 33
+	 */
+	private static final int SCAN_FAILED_SCANNING_TOO_FREQUENTLY = 6;
 	private final Handler mBleScanTimeout = new Handler();
 	private final Handler mBleScanPeriodicalTimeout = new Handler();
+	/**
+	 * the platform limits the scan starts per app, not per object, so the
+	 * start history is shared
+	 */
+	private static final BleScanScheduler mScanScheduler = new BleScanScheduler();
 
 	private boolean mIsBleScanning = false;
 	private boolean mIsBleScanningPeriodically = false;
+	/**
+	 * true while the scanner is actually running, during the pause of a duty
+	 * cycle or a postponed start it's false while still BLE scanning
+	 */
+	private boolean mIsScannerRunning = false;
+	private int mScanRetries = 0;
+	private final Runnable mScanRetryTask = this::startScanThrottled;
+
+	private List<ScanFilter> mScanFilters = null;
+	private ScanSettings mScanSettings = null;
+
+	/**
+	 * report delay of the batched mode when the controller can't batch the
+	 * scan results itself, 0 to report every scan result immediately
+	 */
+	private long mSoftwareReportDelay = 0;
+	private final Handler mBleScanReportTimeout = new Handler();
+	/**
+	 * the scan results of the current report window, keyed by address so
+	 * every device is reported once per window
+	 */
+	private final LinkedHashMap<String, ScanResult> mPendingScanResults = new LinkedHashMap<>();
 
 	/**
 	 * @throws NullPointerException If one of the parameters is null
@@ -101,28 +149,39 @@ public class BluetoothAdapterHelper {
 	 *
 	 * Checks for API support and start a scan based on that. This
 	 * means that it will support older device that don't have the
-	 * scanner wrapper in the SDK.
+	 * scanner wrapper in the SDK. If the platform limit of scan starts
+	 * is reached the scan is started as soon as the limit allows it.
 	 *
 	 * @return true, if the scan was started successfully without any problems.
 	 */
 	public boolean startBleScan() {
-		startScan();
+		if (isBleScanning()) {
+			Log.i(TAG, "BLE Scanning has already been started!");
+			return false;
+		}
 
-		boolean scanInitiatedSuccessfully = false;
-		if (mBluetoothAdapter.isDiscovering()) {
-			// Scanning was initiated successfully
-			mIsBleScanning = true;
-			scanInitiatedSuccessfully = true;
-			bleStopScanTimeout();
+		if (checkApiSupport() && mBluetoothScanner == null) {
+			// the scanner is only available while bluetooth is enabled
+			mBluetoothScanner = mBluetoothAdapter.getBluetoothLeScanner();
+			if (mBluetoothScanner == null) {
+				Log.e(TAG, "Bluetooth scanner could not be initialized.");
+				return false;
+			}
 		}
 
+		mIsBleScanning = true;
+		mScanRetries = 0;
+		startScanThrottled();
+		bleStopScanTimeout();
+
 		mBluetoothAdapterHelperCallback.onBleStartScan();
-		return scanInitiatedSuccessfully;
+		return true;
 	}
 
 	/**
-	 * start a BLE scan operation that in the background it actually starts and
-	 * stop the scanning every BLE_SCAN_PERIODICAL_INTERVAL,
+	 * start a BLE scan operation that in the background runs with the duty
+	 * cycle of {@link #setScanDutyCycle(long, long)}, the scan runs for the
+	 * scan window and is paused for the rest of every scan interval.
 	 * <p>
 	 * The callback {@link BluetoothAdapterHelperCallback#onBleStopScan()} gets
 	 * called when the {@link #stopBleScan()} method is called or when the
@@ -131,12 +190,17 @@ public class BluetoothAdapterHelper {
 	 * @return true, if the scan was started successfully, otherwise false
 	 */
 	public boolean startBleScanPeriodically() {
-		boolean scanInitiatedSuccessfully = startBleScan();
+		if (isBleScanning()) {
+			Log.i(TAG, "BLE Scanning has already been started!");
+			return false;
+		}
 
-		if (scanInitiatedSuccessfully) {
-			// Scan was initiated successfully
-			Log.i(TAG, "Scan for BLE devices periodically");
-			bleStartScanPeriodically();
+		Log.i(TAG, "Scan for BLE devices periodically");
+		mIsBleScanningPeriodically = true;
+
+		boolean scanInitiatedSuccessfully = startBleScan();
+		if (!scanInitiatedSuccessfully) {
+			mIsBleScanningPeriodically = false;
 		}
 
 		return scanInitiatedSuccessfully;
@@ -150,6 +214,8 @@ public class BluetoothAdapterHelper {
 	public void stopBleScan() {
 		if (isBleScanning()) {
 			stopScan();
+			mBleScanReportTimeout.removeCallbacksAndMessages(null);
+			reportPendingScanResults();
 
 			mIsBleScanning = false;
 			mIsBleScanningPeriodically = false;
@@ -173,29 +239,46 @@ public class BluetoothAdapterHelper {
 	}
 
 	/**
-	 * Once this method is called after BLE_SCAN_PERIODICAL_INTERVAL runs out
-	 * it's body code will be called. BLE scanning will be stopped, if
-	 * mIsBleScanningPeriodically is true then it starts BLE scanning. <br>
-	 * As long as the mIsBleScanningPeriodically is true then this method will
-	 * be called recursively.
+	 * Starts the scanner, or postpones the start until it doesn't exceed the
+	 * platform limit of scan starts. When scanning periodically the scanner
+	 * is paused once the scan window has passed and this method is called
+	 * again at the next scan interval. <br>
+	 * As long as the mIsBleScanning is true then this method will be called
+	 * recursively.
 	 * <p>
 	 *
 	 * The callback {@link BluetoothAdapterHelperCallback#onBleStopScan()} gets
 	 * called when the {@link #stopBleScan()} method is called or when the
 	 * BLE_SCAN_TIMEOUT runs out
 	 */
-	private void bleStartScanPeriodically() {
-		mIsBleScanningPeriodically = true;
-		mBleScanPeriodicalTimeout.postDelayed(() -> {
-
-			// While this is true it will continue starting the BLE scan
-			// the mIsBleScanningPeriodically becomes false when the
-			// BLE_SCAN_TIMEOUT runs out
-			if (mIsBleScanningPeriodically)	{
-				startScan();
-				bleStartScanPeriodically();
-			}
-		}, BLE_SCAN_PERIODICAL_INTERVAL);
+	private void startScanThrottled() {
+		// While this is true it will continue starting the BLE scan
+		// the mIsBleScanning becomes false when the BLE_SCAN_TIMEOUT
+		// runs out
+		if (!mIsBleScanning || mIsScannerRunning) {
+			return;
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		long startDelay = mScanScheduler.getStartDelay(now);
+		if (startDelay > 0) {
+			Log.i(TAG, "Postponing BLE scan start by " + startDelay + " ms to stay within the platform limit");
+			mBleScanPeriodicalTimeout.postDelayed(this::startScanThrottled, startDelay);
+			return;
+		}
+
+		mScanScheduler.onScanStarted(now);
+		startScan();
+
+		if (mIsBleScanningPeriodically && !mScanScheduler.isContinuous()) {
+			final long scanWindow = mScanScheduler.getScanWindow();
+			final long scanPause = mScanScheduler.getScanInterval() - scanWindow;
+
+			mBleScanPeriodicalTimeout.postDelayed(() -> {
+				stopScan();
+				mBleScanPeriodicalTimeout.postDelayed(this::startScanThrottled, scanPause);
+			}, scanWindow);
+		}
 	}
 
 	/**
@@ -203,7 +286,11 @@ public class BluetoothAdapterHelper {
 	 * to check which adapter should be used.
 	 */
 	private void startScan() {
-		if (checkApiSupport()) {
+		mIsScannerRunning = true;
+
+		if (checkApiSupport() && mScanSettings != null) {
+			mBluetoothScanner.startScan(mScanFilters, mScanSettings, scanCallback); // API version 21 and higher.
+		} else if (checkApiSupport()) {
 			mBluetoothScanner.startScan(scanCallback); // API version 21 and higher.
 		} else {
 			mBluetoothAdapter.startLeScan(mLeScanCallback); // API version lower then 21.
@@ -215,13 +302,82 @@ public class BluetoothAdapterHelper {
 	 * to check which adapter should be used.
 	 */
 	private void stopScan() {
+		if (!mIsScannerRunning) {
+			return;
+		}
+
+		mIsScannerRunning = false;
 		if (checkApiSupport()) {
+			// deliver the results of the last report window
+			mBluetoothScanner.flushPendingScanResults(scanCallback);
 			mBluetoothScanner.stopScan(scanCallback); // API version 21 and higher.
 		} else {
 			mBluetoothAdapter.stopLeScan(mLeScanCallback); // API version lower then 21.
 		}
 	}
 
+	/**
+	 * Sets the filters and settings the next scans are started with. The
+	 * filtering is done by the bluetooth controller, so devices that don't
+	 * match never wake up the app. Only used for API version 21 and higher.
+	 * <p>
+	 * Scan results are reported in batches to
+	 * {@link BluetoothAdapterHelperCallback#onBleDevicesFound(List)} when the
+	 * settings have a report delay, or when a software report delay is given
+	 * for controllers that can't batch the results themselves.
+	 *
+	 * @param scanFilters Filters of the scan, null or empty to find all devices.
+	 * @param scanSettings Settings of the scan, null for the default settings.
+	 * @param softwareReportDelay Milliseconds to collect scan results before
+	 *                            reporting them, 0 to report every result
+	 *                            immediately.
+	 */
+	public void setScanOptions(List<ScanFilter> scanFilters, ScanSettings scanSettings,
+			long softwareReportDelay) {
+		mScanFilters = scanFilters;
+		mScanSettings = scanSettings;
+		mSoftwareReportDelay = softwareReportDelay;
+	}
+
+	/**
+	 * checks if the controller can batch scan results, see
+	 * {@link ScanSettings.Builder#setReportDelay(long)}
+	 *
+	 * @return true if batching is supported
+	 */
+	public boolean isOffloadedScanBatchingSupported() {
+		return checkApiSupport() && mBluetoothAdapter.isOffloadedScanBatchingSupported();
+	}
+
+	/**
+	 * adds scan results to the current report window, one result is kept for
+	 * every device
+	 */
+	private void addPendingScanResults(List<ScanResult> results) {
+		synchronized (mPendingScanResults) {
+			for (ScanResult result : results) {
+				mPendingScanResults.put(result.getDevice().getAddress(), result);
+			}
+		}
+	}
+
+	/**
+	 * reports the scan results of the current report window, if any
+	 */
+	private void reportPendingScanResults() {
+		List<ScanResult> results;
+		synchronized (mPendingScanResults) {
+			if (mPendingScanResults.isEmpty()) {
+				return;
+			}
+
+			results = new ArrayList<>(mPendingScanResults.values());
+			mPendingScanResults.clear();
+		}
+
+		mBluetoothAdapterHelperCallback.onBleDevicesFound(results);
+	}
+
 	/**
 	 * Gets the bluetooth manager.
 	 * @return BluetoothManager
@@ -248,7 +404,8 @@ public class BluetoothAdapterHelper {
 
 	/**
 	 * checking if a discovery is in progress, discovery scans for all Bluetooth
-	 * device types
+	 * device types. BLE scans are not part of a discovery, use
+	 * {@link #isBleScanning()} for those
 	 * 
 	 * @return true if discovering
 	 */
@@ -276,13 +433,23 @@ public class BluetoothAdapterHelper {
 	}
 
 	/**
-	 * get the interval time between the BLE scans when using the periodical
-	 * scan
+	 * get the interval time between the BLE scan starts when using the
+	 * periodical scan
 	 * 
 	 * @return the interval time
 	 */
 	public long getBleScanPeriodicalInterval() {
-		return BLE_SCAN_PERIODICAL_INTERVAL;
+		return mScanScheduler.getScanInterval();
+	}
+
+	/**
+	 * get the time the BLE scan runs every interval when using the
+	 * periodical scan
+	 *
+	 * @return the scan window
+	 */
+	public long getBleScanWindow() {
+		return mScanScheduler.getScanWindow();
 	}
 
 	/**
@@ -297,14 +464,16 @@ public class BluetoothAdapterHelper {
 	}
 
 	/**
-	 * use it to set the interval for the {@link #startBleScanPeriodically()} or
-	 * the {@link #startBleScanPeriodically()} methods
+	 * use it to set the duty cycle for the {@link #startBleScanPeriodically()}
+	 * method, see {@link BleScanScheduler#setDutyCycle(long, long)}
 	 * 
-	 * @param scanPeriodicalInterval
-	 *            the time to set the interval to
+	 * @param scanWindow
+	 *            the time the scan runs every interval
+	 * @param scanInterval
+	 *            the time between two scan starts
 	 */
-	public void setBleScanPeriodicalInterval(long scanPeriodicalInterval) {
-		BLE_SCAN_PERIODICAL_INTERVAL = scanPeriodicalInterval;
+	public void setScanDutyCycle(long scanWindow, long scanInterval) {
+		mScanScheduler.setDutyCycle(scanWindow, scanInterval);
 	}
 
 	/**
@@ -338,7 +507,48 @@ public class BluetoothAdapterHelper {
 		@Override
 		public void onScanResult(int callbackType, ScanResult result) {
 			Log.i(TAG, "BluetoothLeScanner: A BLE device was found.");
-			mBluetoothAdapterHelperCallback.onBleDeviceFound(result.getDevice(), result.getRssi(), result.getScanRecord().getBytes());
+			mScanRetries = 0;
+
+			if (mSoftwareReportDelay > 0) {
+				boolean isWindowStarted;
+				synchronized (mPendingScanResults) {
+					isWindowStarted = !mPendingScanResults.isEmpty();
+				}
+
+				addPendingScanResults(Collections.singletonList(result));
+				if (!isWindowStarted) {
+					mBleScanReportTimeout.postDelayed(() -> reportPendingScanResults(), mSoftwareReportDelay);
+				}
+				return;
+			}
+
+			mBluetoothAdapterHelperCallback.onBleDeviceFound(result.getDevice(), result.getRssi(),
+					result.getScanRecord() != null ? result.getScanRecord().getBytes() : null);
+		}
+
+		@Override
+		public void onScanFailed(int errorCode) {
+			Log.w(TAG, "BluetoothLeScanner: Failed to start the BLE scan. Error code: " + errorCode);
+
+			mIsScannerRunning = false;
+
+			// only a start the platform refused for now is tried again later
+			boolean isRetryable = errorCode == SCAN_FAILED_SCANNING_TOO_FREQUENTLY
+					|| errorCode == SCAN_FAILED_APPLICATION_REGISTRATION_FAILED;
+			if (isRetryable && mScanRetries < MAX_SCAN_RETRIES) {
+				mScanRetries++;
+				mBleScanPeriodicalTimeout.removeCallbacks(mScanRetryTask);
+				mBleScanPeriodicalTimeout.postDelayed(mScanRetryTask, BLE_SCAN_RETRY_DELAY);
+			} else {
+				stopBleScan();
+			}
+		}
+
+		@Override
+		public void onBatchScanResults(List<ScanResult> results) {
+			Log.i(TAG, "BluetoothLeScanner: " + results.size() + " BLE scan results were batched.");
+			addPendingScanResults(results);
+			reportPendingScanResults();
 		}
 	};
 
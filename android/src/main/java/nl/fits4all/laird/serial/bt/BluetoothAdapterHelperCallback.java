@@ -1,6 +1,9 @@
 package nl.fits4all.laird.serial.bt;
 
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanResult;
+
+import java.util.List;
 
 /**
  * Scanning/Stopping and finding BT classic and BLE devices callback's.
@@ -30,4 +33,13 @@ public interface BluetoothAdapterHelperCallback {
 	 * 			  Used the check UUIDs of a device for verification.
 	 */
 	void onBleDeviceFound(BluetoothDevice device, int rssi,	byte[] scanRecord);
+
+	/**
+	 * Callback reporting the BLE devices found during a report window of a
+	 * batched scan, instead of reporting every device on its own.
+	 *
+	 * @param results
+	 *            The last scan result of every device found in the window.
+	 */
+	void onBleDevicesFound(List<ScanResult> results);
 }
\ No newline at end of file
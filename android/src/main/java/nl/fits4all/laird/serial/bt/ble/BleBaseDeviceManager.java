@@ -1,9 +1,9 @@
 package nl.fits4all.laird.serial.bt.ble;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
@@ -18,7 +18,9 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 /**
@@ -38,15 +40,59 @@ import android.util.Log;
  * For example you can use: <br>
  * - connect(BluetoothDevice device, boolean autoConnect) to connect to a remote
  * BLE device <br>
+ * <p>
+ * All GATT operations go through the {@link GattOperationQueue} so only one
+ * of them is in flight at a time, use the methods of this class that return a
+ * {@link GattOperation} instead of calling the BluetoothGatt object directly.
  */
 public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
     protected static final Integer RSSI_UPDATE_INTERVAL = 2000;
+    /**
+     * the ATT MTU every connection starts with before it gets negotiated
+     */
+    public static final int DEFAULT_MTU = 23;
+    /**
+     * bytes of every ATT packet used by the opcode and the attribute handle,
+     * the rest of the MTU can be used for the value
+     */
+    public static final int ATT_HEADER_SIZE = 3;
+    /**
+     * the ATT MTU requested once the services are discovered, Laird BL65x
+     * modules support up to 247. Set to {@link #DEFAULT_MTU} to skip the
+     * negotiation
+     */
+    private int mRequestedMtu = 247;
+    /**
+     * skips the CCCD writes of bonded devices that have the same GATT layout
+     * as on the previous connection. Off by default, only enable it for
+     * devices that are known to store the CCCDs of bonded clients
+     */
+    private boolean mSkipBondedCccdWrites = false;
+    /**
+     * the layouts of the previously connected devices, shared by all
+     * connections
+     */
+    private static final GattLayoutCache mLayoutCache = new GattLayoutCache(32);
     protected Activity mActivity;
     protected BluetoothGatt mBluetoothGatt = null;
     protected BluetoothDevice mBluetoothDevice = null;
-    protected Queue<BluetoothGattCharacteristic> mCharQueue = new LinkedList<BluetoothGattCharacteristic>();
+    /**
+     * every GATT operation is executed through this queue
+     */
+    protected final GattOperationQueue mGattQueue = new GattOperationQueue();
+    /**
+     * characteristics to read or to enable notifications/indications for once
+     * {@link #executeCharacteristicsQueue()} is called
+     */
+    private final List<BluetoothGattCharacteristic> mCharsToSetUp = new ArrayList<BluetoothGattCharacteristic>();
+    /**
+     * the timestamps of the phases of the current connection setup
+     */
+    protected final ConnectionTiming mConnectionTiming = new ConnectionTiming();
     private BluetoothManager mBluetoothManager;
 
+    private int mMtu = DEFAULT_MTU;
+
     private String mValueRSSI;
     private String mValueBattery;
 
@@ -54,7 +100,7 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
 
     private final static String TAG = "BleBaseDeviceManager";
     private boolean mRssiTimerEnabled = false;
-    private Handler mRssiTimerHandler = new Handler();
+    private Handler mRssiTimerHandler = new Handler(Looper.getMainLooper());
 
     /**
      * initialise an object that represents a remote BLE device. Use
@@ -88,7 +134,55 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
     }
 
     /**
-     * Connects to the given BluetoothDevice object
+     * @return the ATT MTU of the current connection
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return the timestamps of the phases of the last connection setup
+     */
+    public ConnectionTiming getConnectionTiming() {
+        return mConnectionTiming;
+    }
+
+    /**
+     * @param requestedMtu the ATT MTU to request once the services are
+     *                     discovered, {@link #DEFAULT_MTU} to skip the
+     *                     negotiation
+     */
+    public void setRequestedMtu(int requestedMtu) {
+        mRequestedMtu = requestedMtu;
+    }
+
+    public int getRequestedMtu() {
+        return mRequestedMtu;
+    }
+
+    /**
+     * @param skipBondedCccdWrites true to only set the notifications locally
+     *                             when a bonded device with an unchanged GATT
+     *                             layout already has the CCCD value
+     */
+    public void setSkipBondedCccdWrites(boolean skipBondedCccdWrites) {
+        mSkipBondedCccdWrites = skipBondedCccdWrites;
+    }
+
+    public boolean isSkipBondedCccdWrites() {
+        return mSkipBondedCccdWrites;
+    }
+
+    /**
+     * @return the maximum bytes that fit in a single characteristic write
+     */
+    public int getMaxPayloadSize() {
+        return mMtu - ATT_HEADER_SIZE;
+    }
+
+    /**
+     * Connects to the given BluetoothDevice object over LE, dual mode devices
+     * would otherwise be connected over BR/EDR when the device is not cached
      *
      * @param device      the current BluetoothDevice to connect to
      * @param autoConnect Whether to directly connect to the remote device (false) or to
@@ -97,8 +191,11 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
      */
     public void connect(BluetoothDevice device, boolean autoConnect) {
         mBluetoothDevice = device;
+        mConnectionTiming.reset();
+        mConnectionTiming.mark(ConnectionTiming.Phase.CONNECT_REQUESTED);
         mBluetoothGatt = mBluetoothDevice.connectGatt(mActivity, autoConnect,
-                this);
+                this, BluetoothDevice.TRANSPORT_LE);
+        mGattQueue.setBluetoothGatt(mBluetoothGatt);
     }
 
     /**
@@ -126,6 +223,136 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
         }
     }
 
+    /**
+     * Requests a connection parameter update, a high priority gives a short
+     * connection interval for fast transfers at the cost of power usage. The
+     * operation is done once the request is initiated.
+     *
+     * @param connectionPriority one of
+     *                           {@link BluetoothGatt#CONNECTION_PRIORITY_BALANCED},
+     *                           {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH} or
+     *                           {@link BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER}
+     * @return the queued operation
+     */
+    public GattOperation requestConnectionPriority(final int connectionPriority) {
+        Log.i(TAG, "requestConnectionPriority: " + connectionPriority);
+        return mGattQueue.enqueue(new GattOperation(
+                GattOperation.Type.REQUEST_CONNECTION_PRIORITY, null,
+                GattOperationQueue.DEFAULT_TIMEOUT, gatt -> gatt.requestConnectionPriority(connectionPriority)));
+    }
+
+    /**
+     * Sets the preferred PHY of the connection, the result is reported to
+     * {@link #onPhyUpdate(BluetoothGatt, int, int, int)}. The operation is
+     * done once the request is initiated. Only supported from Android 8.0 on,
+     * the operation fails on older versions.
+     *
+     * @param phyMask the PHYs to prefer for sending and receiving, for example
+     *                {@link BluetoothDevice#PHY_LE_2M_MASK}
+     * @return the queued operation
+     */
+    public GattOperation setPreferredPhy(final int phyMask) {
+        Log.i(TAG, "setPreferredPhy: " + phyMask);
+        return mGattQueue.enqueue(new GattOperation(
+                GattOperation.Type.SET_PREFERRED_PHY, null,
+                GattOperationQueue.DEFAULT_TIMEOUT, gatt -> {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                return false;
+            }
+
+            gatt.setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+            return true;
+        }));
+    }
+
+    /**
+     * Negotiates the ATT MTU, the result is reported to
+     * {@link #onMtuChanged(BluetoothGatt, int, int)}.
+     *
+     * @param mtu the MTU to request
+     * @return the queued operation, the int value holds the new MTU
+     */
+    public GattOperation requestMtu(final int mtu) {
+        return mGattQueue.enqueue(new GattOperation(
+                GattOperation.Type.REQUEST_MTU, null,
+                GattOperationQueue.DEFAULT_TIMEOUT, gatt -> gatt.requestMtu(mtu)));
+    }
+
+    /**
+     * Reads the RSSI of the connection.
+     *
+     * @return the queued operation, the int value holds the RSSI
+     */
+    public GattOperation readRemoteRssi() {
+        return mGattQueue.enqueue(new GattOperation(
+                GattOperation.Type.READ_RSSI, null,
+                GattOperationQueue.DEFAULT_TIMEOUT, BluetoothGatt::readRemoteRssi));
+    }
+
+    /**
+     * Reads the value of a characteristic.
+     *
+     * @param characteristic the characteristic to read
+     * @return the queued operation, the value holds the value read
+     */
+    public GattOperation readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        return mGattQueue.enqueue(new GattOperation(
+                GattOperation.Type.READ_CHARACTERISTIC, characteristic.getUuid(),
+                GattOperationQueue.DEFAULT_TIMEOUT, gatt -> gatt.readCharacteristic(characteristic)));
+    }
+
+    /**
+     * Writes a value to a characteristic. The value and write type are only
+     * set on the characteristic once the write is started, so earlier writes
+     * to the same characteristic that are still queued are not affected.
+     *
+     * @param characteristic the characteristic to write
+     * @param value          the value to write
+     * @param writeType      {@link BluetoothGattCharacteristic#WRITE_TYPE_DEFAULT}
+     *                       or {@link BluetoothGattCharacteristic#WRITE_TYPE_NO_RESPONSE}
+     * @return the queued operation
+     */
+    public GattOperation writeCharacteristic(final BluetoothGattCharacteristic characteristic,
+                                             final byte[] value, final int writeType) {
+        return mGattQueue.enqueue(new GattOperation(
+                GattOperation.Type.WRITE_CHARACTERISTIC, characteristic.getUuid(),
+                GattOperationQueue.DEFAULT_TIMEOUT, gatt -> {
+            characteristic.setWriteType(writeType);
+            characteristic.setValue(value);
+            return gatt.writeCharacteristic(characteristic);
+        }));
+    }
+
+    /**
+     * Reads the value of a descriptor.
+     *
+     * @param descriptor the descriptor to read
+     * @return the queued operation, the value holds the value read
+     */
+    public GattOperation readDescriptor(final BluetoothGattDescriptor descriptor) {
+        return mGattQueue.enqueue(new GattOperation(
+                GattOperation.Type.READ_DESCRIPTOR, descriptor.getUuid(),
+                GattOperationQueue.DEFAULT_TIMEOUT, gatt -> gatt.readDescriptor(descriptor)));
+    }
+
+    /**
+     * Writes a value to a descriptor, the value is only set on the descriptor
+     * once the write is started.
+     *
+     * @param descriptor the descriptor to write
+     * @param value      the value to write
+     * @return the queued operation
+     */
+    public GattOperation writeDescriptor(final BluetoothGattDescriptor descriptor,
+                                         final byte[] value) {
+        return mGattQueue.enqueue(new GattOperation(
+                GattOperation.Type.WRITE_DESCRIPTOR, descriptor.getUuid(),
+                GattOperationQueue.DEFAULT_TIMEOUT, gatt -> {
+            descriptor.setValue(value);
+            return gatt.writeDescriptor(descriptor);
+        }));
+    }
+
     /**
      * Reads the RSSI value periodically with a time interval passed as a
      * parameter.
@@ -144,7 +371,7 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
                 mRssiTimerEnabled = false;
             } else if (mBluetoothGatt != null) {
                 // request RSSI value
-                mBluetoothGatt.readRemoteRssi(); // callback:
+                readRemoteRssi(); // callback:
                 // onReadRemoteRssi
                 // and call it once more in the future
                 readRssiPeriodicaly(mRssiTimerEnabled, timeInterval);
@@ -159,19 +386,9 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
      * one way would be to create separate methods called
      * "setCharacteristicNotification" and "setCharacteristicIndication"
      */
-    protected boolean setCharacteristicNotificationOrIndication(
+    protected GattOperation setCharacteristicNotificationOrIndication(
             BluetoothGattCharacteristic characteristic, boolean enable) {
-        if (mBluetoothGatt == null)
-            throw new NullPointerException("mBluetoothGatt object is null!");
-
-        boolean isSettingNotificationLocallySuccess = mBluetoothGatt
-                .setCharacteristicNotification(characteristic, enable);
-        if (isSettingNotificationLocallySuccess) {
-            return writeDescriptorForNotificationOrIndication(characteristic,
-                    enable);
-        } else {
-            return false;
-        }
+        return writeDescriptorForNotificationOrIndication(characteristic, enable);
     }
 
     /**
@@ -191,6 +408,11 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
 
         List<BluetoothGattService> services = mBluetoothGatt.getServices();
 
+        if (mLayoutCache.setLayout(mBluetoothDevice.getAddress(),
+                GattLayoutCache.getFingerprint(services))) {
+            Log.i(TAG, "GATT layout unchanged since the previous connection");
+        }
+
         for (int i = 0; i < services.size(); i++) {
             onServiceFound(services.get(i));
 
@@ -201,6 +423,7 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
                 onCharFound(characteristics.get(j));
             }
         }
+        mConnectionTiming.mark(ConnectionTiming.Phase.CHARS_FOUND);
         onCharsFoundCompleted();
     }
 
@@ -217,7 +440,9 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
      * @param characteristic the characteristic to add to the queue
      */
     protected void addCharToQueue(BluetoothGattCharacteristic characteristic) {
-        mCharQueue.add(characteristic);
+        synchronized (mCharsToSetUp) {
+            mCharsToSetUp.add(characteristic);
+        }
     }
 
     /**
@@ -225,31 +450,70 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
      * need to be read or notified/indicated and executes that operation.
      * <p>
      * The {@link BleBaseDeviceManager#onCharacteristicsQueueCompleted()} method
-     * is called once all characteristics have been executed
+     * is called once all characteristics have been executed. Characteristics
+     * that failed because the device is not bonded yet are kept and executed
+     * again once the device got bonded
      */
     protected void executeCharacteristicsQueue() {
         // based on char properties @
         // https://msdn.microsoft.com/en-us/library/windows.devices.bluetooth.genericattributeprofile.gattcharacteristicproperties.aspx
+        final List<BluetoothGattCharacteristic> chars;
+        synchronized (mCharsToSetUp) {
+            chars = new ArrayList<BluetoothGattCharacteristic>(mCharsToSetUp);
+            mCharsToSetUp.clear();
+        }
 
-        if (mCharQueue.size() >= 1) {
-            Log.i(TAG, "executeCharacteristicsQueue: "
-                    + mCharQueue.element().getUuid());
+        if (chars.isEmpty()) {
+            mConnectionTiming.mark(ConnectionTiming.Phase.CHARS_SET_UP);
+            onCharacteristicsQueueCompleted();
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(chars.size());
+        for (final BluetoothGattCharacteristic ch : chars) {
+            Log.i(TAG, "executeCharacteristicsQueue: " + ch.getUuid());
 
+            GattOperation operation = null;
             // if char is readable, read char
-            if ((mCharQueue.element().getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) == BluetoothGattCharacteristic.PROPERTY_READ) {
-                mBluetoothGatt.readCharacteristic(mCharQueue.element());
+            if ((ch.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) == BluetoothGattCharacteristic.PROPERTY_READ) {
+                operation = readCharacteristic(ch);
             }
             // if char is notify || indicate, enable
-            else if ((mCharQueue.element().getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == BluetoothGattCharacteristic.PROPERTY_NOTIFY
-                    || (mCharQueue.element().getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) == BluetoothGattCharacteristic.PROPERTY_INDICATE) {
-                setCharacteristicNotificationOrIndication(mCharQueue.element(),
-                        true);
+            else if ((ch.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == BluetoothGattCharacteristic.PROPERTY_NOTIFY
+                    || (ch.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) == BluetoothGattCharacteristic.PROPERTY_INDICATE) {
+                operation = setCharacteristicNotificationOrIndication(ch, true);
             }
-        } else {
+
+            if (operation == null) {
+                onCharExecuted(remaining);
+                continue;
+            }
+
+            operation.addListener(done -> {
+                if (done.getStatus() == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION
+                        || done.getStatus() == BluetoothGatt.GATT_INSUFFICIENT_ENCRYPTION) {
+                    // bonds automatically, try again once bonded
+                    addCharToQueue(ch);
+                }
+
+                onCharExecuted(remaining);
+            });
+        }
+    }
+
+    private void onCharExecuted(AtomicInteger remaining) {
+        if (remaining.decrementAndGet() == 0 && !hasCharsToSetUp()) {
+            mConnectionTiming.mark(ConnectionTiming.Phase.CHARS_SET_UP);
             onCharacteristicsQueueCompleted();
         }
     }
 
+    private boolean hasCharsToSetUp() {
+        synchronized (mCharsToSetUp) {
+            return !mCharsToSetUp.isEmpty();
+        }
+    }
+
     /**
      * called once the
      * {@link BleBaseDeviceManager#executeCharacteristicsQueue()} method is
@@ -258,6 +522,15 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
     protected void onCharacteristicsQueueCompleted() {
     }
 
+    /**
+     * called once the connection is set up and ready to exchange data, the
+     * subclass decides when that is. Records the last phase of the
+     * {@link #getConnectionTiming()}
+     */
+    protected void onConnectionReady() {
+        mConnectionTiming.mark(ConnectionTiming.Phase.READY);
+    }
+
     /**
      * write the Client Characteristic Configuration Descriptor (CCCD) for
      * enabling/disabling notifications/indications to a specific
@@ -266,38 +539,67 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
      * @param ch      the characteristic to write the CCCD descriptor to
      * @param enabled false to disable notifications/indications, true to enable
      *                them
-     * @return boolean false if CCCD descriptor was not found or if the
-     * operation was not initiated successful, otherwise returns true
+     * @return the queued operation, it fails if the CCCD descriptor was not
+     * found or if the notifications/indications could not be set locally
      */
-    private boolean writeDescriptorForNotificationOrIndication(
-            BluetoothGattCharacteristic ch, boolean enabled) {
+    private GattOperation writeDescriptorForNotificationOrIndication(
+            final BluetoothGattCharacteristic ch, final boolean enabled) {
+        final String address = mBluetoothDevice.getAddress();
         // see:
         // https://developer.bluetooth.org/gatt/descriptors/Pages/DescriptorViewer.aspx?u=org.bluetooth.descriptor.gatt.client_characteristic_configuration.xml
-        BluetoothGattDescriptor descriptor = ch
+        final BluetoothGattDescriptor descriptor = ch
                 .getDescriptor(DefinedBleUUIDs.Descriptor.CLIENT_CHARACTERISTIC_CONFIGURATION_DESCRIPTOR);
-        if (descriptor == null)
-            return false;
 
         int properties = ch.getProperties();
+        byte[] val = null;
 
         if ((BluetoothGattCharacteristic.PROPERTY_NOTIFY & properties) != 0) {
             // set notifications, heart rate measurement etc
-            byte[] val = enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+            val = enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
                     : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
-            boolean descrSuccess = descriptor.setValue(val);
-            Log.i(TAG, "NOTIFY: " + descrSuccess);
         } else if ((BluetoothGattCharacteristic.PROPERTY_INDICATE & properties) != 0) {
             // set notifications, temperature measurement etc
-            byte[] val = enabled ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE
+            val = enabled ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE
                     : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
-            boolean descrSuccess = descriptor.setValue(val);
-            Log.i(TAG, "INDICATE: " + descrSuccess);
         }
 
-        boolean success = mBluetoothGatt.writeDescriptor(descriptor);
+        final byte[] value = val;
 
-        Log.i(TAG, "writeDescriptor success: " + success);
-        return success;
+        if (mSkipBondedCccdWrites && value != null && isBonded()
+                && mLayoutCache.isCccdWritten(address, ch, value)) {
+            Log.i(TAG, "CCCD of " + ch.getUuid() + " already written, only setting it locally");
+            return mGattQueue.enqueue(new GattOperation(
+                    GattOperation.Type.SET_NOTIFICATION, ch.getUuid(),
+                    GattOperationQueue.DEFAULT_TIMEOUT, gatt -> gatt.setCharacteristicNotification(ch, enabled)));
+        }
+
+        GattOperation operation = mGattQueue.enqueue(new GattOperation(
+                GattOperation.Type.WRITE_DESCRIPTOR,
+                DefinedBleUUIDs.Descriptor.CLIENT_CHARACTERISTIC_CONFIGURATION_DESCRIPTOR,
+                GattOperationQueue.DEFAULT_TIMEOUT, gatt -> {
+            if (descriptor == null || value == null
+                    || !gatt.setCharacteristicNotification(ch, enabled)) {
+                return false;
+            }
+
+            descriptor.setValue(value);
+            boolean success = gatt.writeDescriptor(descriptor);
+
+            Log.i(TAG, "writeDescriptor success: " + success);
+            return success;
+        }));
+
+        operation.addListener(done -> {
+            // only bonded devices keep the value for the next connection
+            if (done.isSuccess() && isBonded()) {
+                mLayoutCache.setCccdWritten(address, ch, value);
+            }
+        });
+        return operation;
+    }
+
+    private boolean isBonded() {
+        return mBluetoothDevice.getBondState() == BluetoothDevice.BOND_BONDED;
     }
 
     private void registerReceiver() {
@@ -344,7 +646,10 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
         }
     }
 
-    private void closeGatt() {
+    protected void closeGatt() {
+        mGattQueue.clear();
+        mGattQueue.setBluetoothGatt(null);
+
         if (mBluetoothGatt != null) {
             mBluetoothGatt.close();
             mBluetoothGatt = null;
@@ -412,7 +717,9 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
 
                     // if there are any chars in the queue finish their
                     // operation
-                    executeCharacteristicsQueue();
+                    if (hasCharsToSetUp()) {
+                        executeCharacteristicsQueue();
+                    }
 
                     // close the gatt if we are disconnected
                     manageGatt();
@@ -426,6 +733,11 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
                 } else if (state == BluetoothDevice.BOND_NONE) {
                     Log.i(TAG, "Not Bonded");
 
+                    // the device no longer keeps the CCCDs for us
+                    if (mBluetoothDevice != null) {
+                        mLayoutCache.remove(mBluetoothDevice.getAddress());
+                    }
+
                     notBonded();
                 }
             }
@@ -443,6 +755,7 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
                 case BluetoothProfile.STATE_CONNECTED:
                     // so that we can get bonding operation events
                     registerReceiver();
+                    mConnectionTiming.mark(ConnectionTiming.Phase.CONNECTED);
                     mBluetoothGatt.discoverServices();
                     Log.d(TAG, "onConnectionStateChange: STATE_CONNECTED");
                     break;
@@ -450,12 +763,16 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
                     Log.d(TAG, "onConnectionStateChange: STATE_DISCONNECTING");
                     break;
                 case BluetoothProfile.STATE_DISCONNECTED:
+                    mMtu = DEFAULT_MTU;
+                    mGattQueue.clear();
                     manageGatt();
                     unregisterReceiver();
                     Log.d(TAG, "onConnectionStateChange: STATE_DISCONNECTED");
                     break;
             }
         } else {
+            mMtu = DEFAULT_MTU;
+            mGattQueue.clear();
             manageGatt();
             unregisterReceiver();
         }
@@ -463,7 +780,43 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
 
     @Override
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-        findServicesAndCharacteristics();
+        /*
+         * negotiate the MTU before setting up the characteristics, the
+         * characteristics are set up once the MTU request is done, failed or
+         * timed out
+         */
+        mConnectionTiming.mark(ConnectionTiming.Phase.SERVICES_DISCOVERED);
+
+        if (mRequestedMtu > DEFAULT_MTU) {
+            Log.i(TAG, "Requesting MTU of " + mRequestedMtu);
+            requestMtu(mRequestedMtu).addListener(operation -> {
+                mConnectionTiming.mark(ConnectionTiming.Phase.MTU_NEGOTIATED);
+                findServicesAndCharacteristics();
+            });
+        } else {
+            findServicesAndCharacteristics();
+        }
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            mMtu = mtu;
+            Log.i(TAG, "onMtuChanged: " + mtu);
+        } else {
+            Log.w(TAG, "Failed to change MTU. Error status: " + status);
+        }
+
+        mGattQueue.onCompleted(GattOperation.Type.REQUEST_MTU, null, status, null, mtu);
+    }
+
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            Log.i(TAG, "onPhyUpdate: TX " + txPhy + ", RX " + rxPhy);
+        } else {
+            Log.w(TAG, "Failed to update PHY. Error status: " + status);
+        }
     }
 
     @Override
@@ -481,9 +834,6 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
                     // mIBleBaseActivityUiCallback.onUiBatteryRead(mValueBattery);
                 }
 
-                removeCharFromQueue();
-                executeCharacteristicsQueue();
-
                 break;
 
             case BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION:
@@ -501,14 +851,9 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
                 break;
 
         }
-    }
 
-    private void removeCharFromQueue() {
-        if (!mCharQueue.isEmpty()) {
-            Log.i(TAG, "Char removed from queue: "
-                    + mCharQueue.element().getUuid());
-            mCharQueue.remove();
-        }
+        mGattQueue.onCompleted(GattOperation.Type.READ_CHARACTERISTIC,
+                characteristic.getUuid(), status, characteristic.getValue(), 0);
     }
 
     @Override
@@ -532,6 +877,9 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
                 Log.w(TAG, "Failed to write char: " + characteristic.getUuid());
                 break;
         }
+
+        mGattQueue.onCompleted(GattOperation.Type.WRITE_CHARACTERISTIC,
+                characteristic.getUuid(), status, null, 0);
     }
 
     @Override
@@ -539,9 +887,6 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
                                  BluetoothGattDescriptor descriptor, int status) {
         switch (status) {
             case BluetoothGatt.GATT_SUCCESS:
-                removeCharFromQueue();
-                executeCharacteristicsQueue();
-
                 break;
 
             case BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION:
@@ -557,6 +902,9 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
                 Log.w(TAG, "Failed to read descriptor: " + descriptor.getUuid());
                 break;
         }
+
+        mGattQueue.onCompleted(GattOperation.Type.READ_DESCRIPTOR,
+                descriptor.getUuid(), status, descriptor.getValue(), 0);
     }
 
     @Override
@@ -564,8 +912,6 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
                                   BluetoothGattDescriptor descriptor, int status) {
         switch (status) {
             case BluetoothGatt.GATT_SUCCESS:
-                removeCharFromQueue();
-                executeCharacteristicsQueue();
                 break;
 
             case BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION:
@@ -581,6 +927,9 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
                 Log.w(TAG, "Failed to write descriptor: " + descriptor.getUuid());
                 break;
         }
+
+        mGattQueue.onCompleted(GattOperation.Type.WRITE_DESCRIPTOR,
+                descriptor.getUuid(), status, null, 0);
     }
 
     @Override
@@ -605,6 +954,8 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
                 Log.w(TAG, "Failed to read RSSI. Error status: " + status);
                 break;
         }
+
+        mGattQueue.onCompleted(GattOperation.Type.READ_RSSI, null, status, null, rssi);
     }
 
     @Override
@@ -612,7 +963,6 @@ public abstract class BleBaseDeviceManager extends BluetoothGattCallback {
 
         switch (status) {
             case BluetoothGatt.GATT_SUCCESS:
-                removeCharFromQueue();
                 break;
             case BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION:
             case BluetoothGatt.GATT_INSUFFICIENT_ENCRYPTION:
@@ -0,0 +1,120 @@
+package nl.fits4all.laird.serial.bt.ble;
+
+import android.os.SystemClock;
+
+/**
+ * Records when each phase of setting up a connection was reached, to find
+ * out where the connection time goes.
+ * <p>
+ * The timestamps are taken from {@link SystemClock#elapsedRealtime()}, which
+ * is monotonic and keeps counting in deep sleep. Every connect attempt starts
+ * a new recording.
+ */
+public class ConnectionTiming {
+    /**
+     * the phases of a connection setup, in the order they are reached
+     */
+    public enum Phase {
+        /**
+         * connectGatt was called
+         */
+        CONNECT_REQUESTED("connectRequested"),
+        /**
+         * the link layer connection is established
+         */
+        CONNECTED("connected"),
+        /**
+         * the services of the remote device are discovered
+         */
+        SERVICES_DISCOVERED("servicesDiscovered"),
+        /**
+         * the MTU negotiation is done, failed or timed out
+         */
+        MTU_NEGOTIATED("mtuNegotiated"),
+        /**
+         * the characteristics of the remote device are found
+         */
+        CHARS_FOUND("charsFound"),
+        /**
+         * the notifications/indications are enabled and the characteristics
+         * are read
+         */
+        CHARS_SET_UP("charsSetUp"),
+        /**
+         * the device is ready to exchange data
+         */
+        READY("ready");
+
+        private final String mName;
+
+        Phase(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    private static final long NOT_REACHED = -1;
+
+    private final long[] mTimestamps = new long[Phase.values().length];
+
+    public ConnectionTiming() {
+        reset();
+    }
+
+    /**
+     * forgets all recorded phases, called when a new connection is requested
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < mTimestamps.length; i++) {
+            mTimestamps[i] = NOT_REACHED;
+        }
+    }
+
+    /**
+     * records the current time for the phase, a phase that is reached again
+     * within the same connection keeps its first timestamp
+     *
+     * @param phase the phase that was reached
+     */
+    public synchronized void mark(Phase phase) {
+        if (mTimestamps[phase.ordinal()] == NOT_REACHED) {
+            mTimestamps[phase.ordinal()] = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * @param phase the phase
+     * @return true if the phase was reached in the current connection
+     */
+    public synchronized boolean isReached(Phase phase) {
+        return mTimestamps[phase.ordinal()] != NOT_REACHED;
+    }
+
+    /**
+     * @param phase the phase
+     * @return the time in milliseconds since boot the phase was reached, or -1
+     * if it was not reached
+     */
+    public synchronized long getTimestamp(Phase phase) {
+        return mTimestamps[phase.ordinal()];
+    }
+
+    /**
+     * @param phase the phase
+     * @return the time in milliseconds from the connect request until the
+     * phase was reached, or -1 if one of them was not reached
+     */
+    public synchronized long getElapsed(Phase phase) {
+        long start = mTimestamps[Phase.CONNECT_REQUESTED.ordinal()];
+        long end = mTimestamps[phase.ordinal()];
+
+        if (start == NOT_REACHED || end == NOT_REACHED) {
+            return NOT_REACHED;
+        }
+
+        return end - start;
+    }
+}
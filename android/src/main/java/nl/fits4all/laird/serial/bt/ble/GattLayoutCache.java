@@ -0,0 +1,145 @@
+package nl.fits4all.laird.serial.bt.ble;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+/**
+ * Remembers the GATT layout of the devices that were connected before and
+ * the Client Characteristic Configuration Descriptors (CCCDs) that were
+ * written to them.
+ * <p>
+ * A bonded server keeps the CCCD values of a client across connections, so
+ * on a reconnect the notifications/indications only have to be enabled
+ * locally. The layout is identified by a fingerprint of the services and
+ * characteristics, a firmware update that changes the GATT table changes the
+ * fingerprint and drops the remembered CCCDs of the device.
+ */
+public class GattLayoutCache {
+    /**
+     * the layout of a single device
+     */
+    private static class Layout {
+        private final long mFingerprint;
+        /**
+         * the CCCD values written to the device, keyed by
+         * {@link #getCharacteristicKey(BluetoothGattCharacteristic)}
+         */
+        private final Map<String, byte[]> mCccdValues = new HashMap<String, byte[]>();
+
+        private Layout(long fingerprint) {
+            mFingerprint = fingerprint;
+        }
+    }
+
+    private final int mMaxDevices;
+    /**
+     * ordered from least to most recently used
+     */
+    private final LinkedHashMap<String, Layout> mLayouts;
+
+    /**
+     * @param maxDevices the maximum devices to remember, the least recently
+     *                   connected device is forgotten first
+     */
+    public GattLayoutCache(int maxDevices) {
+        mMaxDevices = maxDevices;
+        mLayouts = new LinkedHashMap<String, Layout>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Layout> eldest) {
+                return size() > mMaxDevices;
+            }
+        };
+    }
+
+    /**
+     * calculates the fingerprint of the discovered services and
+     * characteristics, it includes the UUIDs, instance ids and properties
+     *
+     * @param services the services of the device
+     * @return the fingerprint
+     */
+    public static long getFingerprint(List<BluetoothGattService> services) {
+        long fingerprint = 17;
+
+        for (BluetoothGattService service : services) {
+            fingerprint = 31 * fingerprint + service.getUuid().hashCode();
+            fingerprint = 31 * fingerprint + service.getInstanceId();
+
+            for (BluetoothGattCharacteristic ch : service.getCharacteristics()) {
+                fingerprint = 31 * fingerprint + ch.getUuid().hashCode();
+                fingerprint = 31 * fingerprint + ch.getInstanceId();
+                fingerprint = 31 * fingerprint + ch.getProperties();
+            }
+        }
+
+        return fingerprint;
+    }
+
+    /**
+     * stores the layout of a device, the remembered CCCDs are dropped if the
+     * layout changed
+     *
+     * @param address     the address of the device
+     * @param fingerprint the fingerprint of the layout
+     * @return true if the device had the same layout before
+     */
+    public synchronized boolean setLayout(String address, long fingerprint) {
+        Layout layout = mLayouts.get(address);
+
+        if (layout != null && layout.mFingerprint == fingerprint) {
+            return true;
+        }
+
+        mLayouts.put(address, new Layout(fingerprint));
+        return false;
+    }
+
+    /**
+     * @param address the address of the device
+     * @param ch      the characteristic of the CCCD
+     * @param value   the CCCD value
+     * @return true if the value was written to the CCCD before
+     */
+    public synchronized boolean isCccdWritten(String address, BluetoothGattCharacteristic ch,
+                                              byte[] value) {
+        Layout layout = mLayouts.get(address);
+        return layout != null
+                && Arrays.equals(layout.mCccdValues.get(getCharacteristicKey(ch)), value);
+    }
+
+    /**
+     * remembers the value written to a CCCD, only call this for bonded
+     * devices as other devices forget the value once disconnected
+     *
+     * @param address the address of the device
+     * @param ch      the characteristic of the CCCD
+     * @param value   the CCCD value
+     */
+    public synchronized void setCccdWritten(String address, BluetoothGattCharacteristic ch,
+                                            byte[] value) {
+        Layout layout = mLayouts.get(address);
+
+        if (layout != null) {
+            layout.mCccdValues.put(getCharacteristicKey(ch), value);
+        }
+    }
+
+    /**
+     * forgets a device, for example once its bond is removed
+     *
+     * @param address the address of the device
+     */
+    public synchronized void remove(String address) {
+        mLayouts.remove(address);
+    }
+
+    private static String getCharacteristicKey(BluetoothGattCharacteristic ch) {
+        return ch.getService().getUuid() + "/" + ch.getUuid() + "/" + ch.getInstanceId();
+    }
+}
@@ -0,0 +1,220 @@
+package nl.fits4all.laird.serial.bt.ble;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.SystemClock;
+
+/**
+ * A single GATT operation that is executed by the {@link GattOperationQueue}.
+ * <p>
+ * Also serves as the future of the operation, listeners can be added to get
+ * notified once the operation is completed, failed or timed out.
+ */
+public class GattOperation {
+    /**
+     * the operation could not be initiated, for example because the GATT
+     * client is closed
+     */
+    public static final int STATUS_NOT_INITIATED = -1;
+    /**
+     * the remote device did not respond to the operation in time
+     */
+    public static final int STATUS_TIMEOUT = -2;
+    /**
+     * the operation was cancelled because the connection was closed
+     */
+    public static final int STATUS_CANCELLED = -3;
+
+    public enum Type {
+        READ_CHARACTERISTIC, WRITE_CHARACTERISTIC, READ_DESCRIPTOR, WRITE_DESCRIPTOR,
+        REQUEST_MTU, SET_PREFERRED_PHY, READ_RSSI, REQUEST_CONNECTION_PRIORITY,
+        /**
+         * enables notifications/indications locally only, the CCCD of the
+         * remote device is already written
+         */
+        SET_NOTIFICATION
+    }
+
+    /**
+     * starts the operation on the GATT client
+     */
+    public interface Request {
+        /**
+         * @param gatt the GATT client to start the operation on
+         * @return true if the operation was initiated successfully
+         */
+        boolean execute(BluetoothGatt gatt);
+    }
+
+    public interface OnCompleteListener {
+        void onComplete(GattOperation operation);
+    }
+
+    private final Type mType;
+    private final UUID mUuid;
+    private final long mTimeout;
+    private final Request mRequest;
+
+    private final List<OnCompleteListener> mListeners = new ArrayList<OnCompleteListener>();
+    private boolean mIsDone = false;
+    private int mStatus;
+    private byte[] mValue;
+    private int mIntValue;
+
+    /**
+     * @param type    the type of the operation, used to match the callback of
+     *                the operation
+     * @param uuid    the UUID of the characteristic or descriptor of the
+     *                operation, null if the operation has none
+     * @param timeout the time in milliseconds to wait for the callback of the
+     *                operation
+     * @param request starts the operation
+     */
+    public GattOperation(Type type, UUID uuid, long timeout, Request request) {
+        mType = type;
+        mUuid = uuid;
+        mTimeout = timeout;
+        mRequest = request;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    public long getTimeout() {
+        return mTimeout;
+    }
+
+    /**
+     * @return the status of the operation, a BluetoothGatt status or one of the
+     * STATUS constants of this class. Only valid once the operation is done
+     */
+    public synchronized int getStatus() {
+        return mStatus;
+    }
+
+    public synchronized boolean isDone() {
+        return mIsDone;
+    }
+
+    public synchronized boolean isSuccess() {
+        return mIsDone && mStatus == BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * @return the value read by a characteristic or descriptor read, otherwise
+     * null
+     */
+    public synchronized byte[] getValue() {
+        return mValue;
+    }
+
+    /**
+     * @return the RSSI of a RSSI read or the MTU of a MTU request
+     */
+    public synchronized int getIntValue() {
+        return mIntValue;
+    }
+
+    /**
+     * adds a listener that gets called once the operation is done, it's called
+     * immediately if the operation is already done. Listeners are called on
+     * the thread that completes the operation
+     *
+     * @param listener the listener to call
+     * @return this operation
+     */
+    public GattOperation addListener(OnCompleteListener listener) {
+        synchronized (this) {
+            if (!mIsDone) {
+                mListeners.add(listener);
+                return this;
+            }
+        }
+
+        listener.onComplete(this);
+        return this;
+    }
+
+    /**
+     * blocks until the operation is done, never call this from a GATT callback
+     * as the operation can't complete then
+     *
+     * @param timeout the maximum time in milliseconds to wait
+     * @return true if the operation is done
+     * @throws InterruptedException if the thread got interrupted while waiting
+     */
+    public synchronized boolean await(long timeout) throws InterruptedException {
+        long end = SystemClock.uptimeMillis() + timeout;
+        long remaining = timeout;
+
+        while (!mIsDone && remaining > 0) {
+            wait(remaining);
+            remaining = end - SystemClock.uptimeMillis();
+        }
+
+        return mIsDone;
+    }
+
+    /**
+     * @return true if the operation is completed by the stack through a GATT
+     * callback, false if it's done once it's initiated. Connection priority
+     * and PHY updates are link layer procedures that don't block other GATT
+     * operations, and the PHY callback is skipped by some stacks when the PHY
+     * doesn't change. Local notification changes have no callback at all
+     */
+    boolean expectsCallback() {
+        return mType != Type.REQUEST_CONNECTION_PRIORITY && mType != Type.SET_PREFERRED_PHY
+                && mType != Type.SET_NOTIFICATION;
+    }
+
+    boolean matches(Type type, UUID uuid) {
+        return mType == type && (mUuid == null || uuid == null || mUuid.equals(uuid));
+    }
+
+    boolean execute(BluetoothGatt gatt) {
+        return mRequest.execute(gatt);
+    }
+
+    /**
+     * marks the operation as done and calls the listeners
+     *
+     * @return false if the operation was already done
+     */
+    boolean complete(int status, byte[] value, int intValue) {
+        List<OnCompleteListener> listeners;
+
+        synchronized (this) {
+            if (mIsDone) {
+                return false;
+            }
+
+            mIsDone = true;
+            mStatus = status;
+            mValue = value;
+            mIntValue = intValue;
+            notifyAll();
+
+            listeners = new ArrayList<OnCompleteListener>(mListeners);
+            mListeners.clear();
+        }
+
+        for (OnCompleteListener listener : listeners) {
+            listener.onComplete(this);
+        }
+
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return mUuid != null ? mType + " " + mUuid : mType.toString();
+    }
+}
@@ -0,0 +1,238 @@
+package nl.fits4all.laird.serial.bt.ble;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Executes GATT operations one at a time.
+ * <p>
+ * Android only allows a single GATT operation to be in flight, any operation
+ * started while another one waits for its callback is dropped. Every
+ * operation is therefore queued here and only started once the callback of
+ * the previous operation arrived, or once it timed out.
+ * <p>
+ * After a timeout the queue is fenced: the next operation is only started
+ * once the late callback of the operation that timed out arrived and was
+ * dropped, or once {@link #FENCE_TIMEOUT} passed. Otherwise a late callback
+ * could complete the next operation of the same type and UUID.
+ */
+public class GattOperationQueue {
+    private final static String TAG = "GattOperationQueue";
+
+    /**
+     * the time in milliseconds to wait for the callback of an operation
+     */
+    public static final long DEFAULT_TIMEOUT = 5000;
+    /**
+     * the time in milliseconds to wait for the late callback of an operation
+     * that timed out before the next operation is started
+     */
+    public static final long FENCE_TIMEOUT = 1000;
+
+    private final Queue<GattOperation> mOperations = new LinkedList<GattOperation>();
+    private GattOperation mCurrentOperation = null;
+    private BluetoothGatt mBluetoothGatt = null;
+
+    private final Handler mTimeoutHandler = new Handler(Looper.getMainLooper());
+    /**
+     * times out the operation in flight, bound to that operation so a
+     * timeout that fires late can't time out the next operation
+     */
+    private Runnable mTimeoutRunnable = null;
+    /**
+     * the operation that timed out, set while the queue is fenced
+     */
+    private GattOperation mTimedOutOperation = null;
+    private final Runnable mFenceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                mTimedOutOperation = null;
+            }
+            executeNext();
+        }
+    };
+
+    /**
+     * @param gatt the GATT client to execute the operations on, null once the
+     *             client is closed
+     */
+    public synchronized void setBluetoothGatt(BluetoothGatt gatt) {
+        mBluetoothGatt = gatt;
+    }
+
+    /**
+     * @return the total operations that are waiting or in flight
+     */
+    public synchronized int getSize() {
+        return mOperations.size() + (mCurrentOperation != null ? 1 : 0);
+    }
+
+    /**
+     * adds the operation to the end of the queue, it's started immediately if
+     * no other operation is in flight
+     *
+     * @param operation the operation to execute
+     * @return the operation, to be used as the future of the operation
+     */
+    public GattOperation enqueue(GattOperation operation) {
+        synchronized (this) {
+            mOperations.add(operation);
+        }
+
+        executeNext();
+        return operation;
+    }
+
+    /**
+     * completes the operation in flight, called from the GATT callbacks.
+     * Callbacks that don't match the operation in flight are ignored, a late
+     * callback of an operation that timed out lifts the fence
+     *
+     * @param type     the type of operation the callback belongs to
+     * @param uuid     the UUID of the characteristic or descriptor, null if
+     *                 there is none
+     * @param status   the status of the callback
+     * @param value    the value read, null if nothing was read
+     * @param intValue the RSSI or MTU of the callback
+     * @return true if the operation in flight was completed
+     */
+    public boolean onCompleted(GattOperation.Type type, UUID uuid, int status,
+                               byte[] value, int intValue) {
+        GattOperation operation;
+
+        synchronized (this) {
+            if (mCurrentOperation == null && mTimedOutOperation != null
+                    && mTimedOutOperation.matches(type, uuid)) {
+                Log.w(TAG, "Dropped late callback of " + mTimedOutOperation);
+                liftFence();
+                operation = null;
+            } else if (mCurrentOperation == null || !mCurrentOperation.matches(type, uuid)) {
+                return false;
+            } else {
+                operation = mCurrentOperation;
+                mCurrentOperation = null;
+                cancelTimeout();
+            }
+        }
+
+        if (operation == null) {
+            executeNext();
+            return false;
+        }
+
+        operation.complete(status, value, intValue);
+        executeNext();
+        return true;
+    }
+
+    /**
+     * cancels the operation in flight and all waiting operations, called once
+     * the connection is closed
+     */
+    public void clear() {
+        List<GattOperation> cancelled = new ArrayList<GattOperation>();
+
+        synchronized (this) {
+            cancelTimeout();
+            liftFence();
+
+            if (mCurrentOperation != null) {
+                cancelled.add(mCurrentOperation);
+                mCurrentOperation = null;
+            }
+
+            cancelled.addAll(mOperations);
+            mOperations.clear();
+        }
+
+        for (GattOperation operation : cancelled) {
+            operation.complete(GattOperation.STATUS_CANCELLED, null, 0);
+        }
+    }
+
+    /**
+     * starts the next operations until one is in flight or the queue is empty.
+     * The lock is held while starting an operation so its callback can't be
+     * handled before the operation is marked as in flight
+     */
+    private void executeNext() {
+        while (true) {
+            GattOperation operation;
+            boolean initiated;
+
+            synchronized (this) {
+                if (mCurrentOperation != null || mTimedOutOperation != null
+                        || mOperations.isEmpty()) {
+                    return;
+                }
+
+                operation = mOperations.poll();
+                mCurrentOperation = operation;
+
+                initiated = mBluetoothGatt != null && operation.execute(mBluetoothGatt);
+
+                if (initiated && operation.expectsCallback()) {
+                    final GattOperation inFlight = operation;
+                    mTimeoutRunnable = new Runnable() {
+                        @Override
+                        public void run() {
+                            onTimeout(inFlight);
+                        }
+                    };
+                    mTimeoutHandler.postDelayed(mTimeoutRunnable, operation.getTimeout());
+                    return;
+                }
+
+                mCurrentOperation = null;
+            }
+
+            if (!initiated) {
+                Log.w(TAG, "Failed to initiate " + operation);
+            }
+
+            operation.complete(initiated ? BluetoothGatt.GATT_SUCCESS
+                    : GattOperation.STATUS_NOT_INITIATED, null, 0);
+        }
+    }
+
+    private void cancelTimeout() {
+        if (mTimeoutRunnable != null) {
+            mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
+            mTimeoutRunnable = null;
+        }
+    }
+
+    private void onTimeout(GattOperation operation) {
+        synchronized (this) {
+            if (mCurrentOperation != operation) {
+                return;
+            }
+
+            mCurrentOperation = null;
+            mTimeoutRunnable = null;
+
+            // keeps the next operation from being completed by a late callback
+            mTimedOutOperation = operation;
+            mTimeoutHandler.postDelayed(mFenceRunnable, FENCE_TIMEOUT);
+        }
+
+        Log.w(TAG, "Timed out waiting for " + operation);
+        operation.complete(GattOperation.STATUS_TIMEOUT, null, 0);
+    }
+
+    private void liftFence() {
+        if (mTimedOutOperation != null) {
+            mTimeoutHandler.removeCallbacks(mFenceRunnable);
+            mTimedOutOperation = null;
+        }
+    }
+}
@@ -0,0 +1,596 @@
+package nl.fits4all.laird.serial.bt.ble.vsp;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import nl.fits4all.laird.serial.misc.DelimiterReader;
+import nl.fits4all.laird.serial.misc.FifoQueue;
+import nl.fits4all.laird.serial.misc.FileWrapper;
+
+/**
+ * Writes a file to the file system of a Laird module that is in command
+ * mode, for example a compiled smartBASIC application.
+ * <p>
+ * An open file is closed first with AT+FCL, an old file with the same name is
+ * deleted with AT+DEL, then the file is opened with AT+FOW, written in hex
+ * with AT+FWRH and closed with AT+FCL. Up to a window of write commands is
+ * sent before their responses arrive. The module answers the commands in
+ * order, so every response acknowledges the oldest outstanding command.
+ * Responses are parsed byte by byte as they are received, the file is only
+ * read on the thread of {@link Callback#post(Runnable)}.
+ * <p>
+ * What happens on an error response is decided by the {@link ErrorPolicy} of
+ * its error code. Once a write failed the writes after it may have been
+ * stored already, so a retry always starts the file again.
+ * <p>
+ * The methods are synchronized, the callback is called while the lock is
+ * held.
+ */
+public class CommandModeFileWriter {
+    private static final String TAG = "CommandModeFileWriter";
+
+    /**
+     * what to do when the module responds with an error code
+     */
+    public enum ErrorPolicy {
+        /**
+         * fail the write
+         */
+        ABORT,
+        /**
+         * start the file again immediately
+         */
+        RETRY,
+        /**
+         * start the file again after a delay that doubles on every attempt,
+         * with half the window
+         */
+        BACK_OFF
+    }
+
+    /**
+     * connects the writer to the device and reports its progress
+     */
+    public interface Callback {
+        /**
+         * sends a command to the module
+         *
+         * @return false if the command could not be queued
+         */
+        boolean sendCommand(byte[] command, int length);
+
+        /**
+         * runs the task on the thread the file may be read on, not on the
+         * thread that delivers the received data
+         */
+        void post(Runnable task);
+
+        /**
+         * runs the task after the delay in milliseconds, on the same thread
+         * as {@link #post(Runnable)}
+         */
+        void postDelayed(Runnable task, long delay);
+
+        void onProgress(long bytesWritten, long totalBytes);
+
+        void onCompleted(String moduleFileName, long bytesWritten);
+
+        /**
+         * @param errorCode the error code of the module, or null if the
+         *                  write failed for another reason
+         * @param reason    the reason the write failed
+         */
+        void onFailed(String errorCode, String reason);
+    }
+
+    /**
+     * the bytes of the file in every AT+FWRH command
+     */
+    public static final int CHUNK_SIZE = 50;
+    public static final int DEFAULT_WINDOW = 4;
+    public static final int MAX_WINDOW = 16;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    private static final long RESPONSE_TIMEOUT = 5000;
+    /**
+     * the time without responses after which an aborted write is finished
+     */
+    private static final long ABORT_QUIET_TIME = 500;
+    private static final long TIMEOUT_CHECK_INTERVAL = 250;
+    private static final long BACK_OFF_DELAY = 200;
+    private static final int MAX_RESPONSE_LENGTH = 32;
+
+    private static final byte[] WRITE_PREFIX = "AT+FWRH \"".getBytes(FifoQueue.CHARSET);
+
+    private enum Command {
+        CLOSE_PREVIOUS, DELETE, OPEN, WRITE, CLOSE
+    }
+
+    private enum Phase {
+        IDLE,
+        RUNNING,
+        /**
+         * a command failed, waiting for the responses of the commands that
+         * were sent after it before the file is started again
+         */
+        DRAINING,
+        /**
+         * waiting for the back off delay, or for the file thread, before the
+         * file is started again
+         */
+        BACKING_OFF,
+        /**
+         * the write failed or was cancelled, the responses that are still
+         * coming are dropped
+         */
+        ABORTING
+    }
+
+    private final Callback mCallback;
+    private final Map<String, ErrorPolicy> mErrorPolicies = new HashMap<String, ErrorPolicy>();
+    private ErrorPolicy mDefaultErrorPolicy = ErrorPolicy.ABORT;
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    private Phase mPhase = Phase.IDLE;
+    private FileWrapper mFileWrapper;
+    private int mWindow;
+    private int mAttempt;
+    private ErrorPolicy mRestartPolicy;
+    private boolean mIsOpened;
+    private boolean mIsEOF;
+    private boolean mIsCloseSent;
+    private long mBytesWritten;
+    private long mLastActivity;
+    private boolean mIsTimeoutCheckScheduled;
+    private boolean mIsFillScheduled;
+
+    /**
+     * the outstanding commands, oldest first, with the file bytes of each
+     * write
+     */
+    private final Command[] mOutstanding = new Command[MAX_WINDOW + 4];
+    private final int[] mOutstandingBytes = new int[MAX_WINDOW + 4];
+    private int mOutstandingHead;
+    private int mOutstandingCount;
+    private int mOutstandingWrites;
+
+    private final byte[] mCommand = new byte[WRITE_PREFIX.length + CHUNK_SIZE * 2 + 2];
+    private final byte[] mResponse = new byte[MAX_RESPONSE_LENGTH];
+    private int mResponseLength;
+
+    private final Runnable mRestartTask = new Runnable() {
+        @Override
+        public void run() {
+            onBackOffElapsed();
+        }
+    };
+
+    private final Runnable mFillTask = new Runnable() {
+        @Override
+        public void run() {
+            onFillTask();
+        }
+    };
+
+    private final Runnable mTimeoutCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkTimeout();
+        }
+    };
+
+    public CommandModeFileWriter(Callback callback) {
+        mCallback = callback;
+        System.arraycopy(WRITE_PREFIX, 0, mCommand, 0, WRITE_PREFIX.length);
+
+        mErrorPolicies.put(VirtualSerialPortDevice.ERROR_CODE_MEMORY_FULL, ErrorPolicy.ABORT);
+        mErrorPolicies.put(VirtualSerialPortDevice.ERROR_CODE_FSA_FILENAME_TOO_LONG, ErrorPolicy.ABORT);
+        mErrorPolicies.put(VirtualSerialPortDevice.ERROR_CODE_INCORRECT_MODE, ErrorPolicy.ABORT);
+        // the module is still busy with the file system
+        mErrorPolicies.put(VirtualSerialPortDevice.ERROR_CODE_FSA_FAIL_OPENFILE, ErrorPolicy.BACK_OFF);
+        mErrorPolicies.put(VirtualSerialPortDevice.ERROR_CODE_FILE_NOT_OPEN, ErrorPolicy.BACK_OFF);
+        mErrorPolicies.put(VirtualSerialPortDevice.ERROR_CODE_NO_FILE_TO_CLOSE, ErrorPolicy.BACK_OFF);
+        // a command that got corrupted on the way
+        mErrorPolicies.put(VirtualSerialPortDevice.ERROR_CODE_UNKNOWN_COMMAND, ErrorPolicy.RETRY);
+        mErrorPolicies.put(VirtualSerialPortDevice.ERROR_CODE_UNKNOWN_SUBCOMMAND, ErrorPolicy.RETRY);
+        mErrorPolicies.put(VirtualSerialPortDevice.ERROR_CODE_UNEXPECTED_PARM, ErrorPolicy.RETRY);
+    }
+
+    /**
+     * @param errorCode the error code of the module
+     * @param policy    what to do when the module responds with the error code
+     */
+    public synchronized void setErrorPolicy(String errorCode, ErrorPolicy policy) {
+        mErrorPolicies.put(errorCode, policy);
+    }
+
+    /**
+     * @param policy what to do on error codes without a policy
+     */
+    public synchronized void setDefaultErrorPolicy(ErrorPolicy policy) {
+        mDefaultErrorPolicy = policy;
+    }
+
+    public synchronized ErrorPolicy getErrorPolicy(String errorCode) {
+        ErrorPolicy policy = mErrorPolicies.get(errorCode);
+        return policy != null ? policy : mDefaultErrorPolicy;
+    }
+
+    /**
+     * @param maxAttempts the times the file is written before a retry or back
+     *                    off policy fails the write
+     */
+    public synchronized void setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * @return true while responses of the module are handled by the writer
+     */
+    public synchronized boolean isActive() {
+        return mPhase != Phase.IDLE;
+    }
+
+    /**
+     * @return true while a file is written, false once it's written, failed
+     * or cancelled
+     */
+    public synchronized boolean isWriting() {
+        return mPhase != Phase.IDLE && mPhase != Phase.ABORTING;
+    }
+
+    /**
+     * starts writing the file to the module under its module file name
+     *
+     * @param fileWrapper the file to write
+     * @param window      the write commands that may be waiting for a
+     *                    response, between 1 and {@link #MAX_WINDOW}
+     */
+    public synchronized void start(FileWrapper fileWrapper, int window) {
+        // the responses of an aborted write would be taken for responses to
+        // the new commands
+        if (isActive()) {
+            throw new IllegalStateException("The module is still busy with a file");
+        }
+
+        mFileWrapper = fileWrapper;
+        mWindow = Math.max(1, Math.min(MAX_WINDOW, window));
+        mAttempt = 1;
+        mOutstandingHead = 0;
+        mOutstandingCount = 0;
+        mOutstandingWrites = 0;
+        mResponseLength = 0;
+
+        begin();
+
+        if (!mIsTimeoutCheckScheduled) {
+            mIsTimeoutCheckScheduled = true;
+            mCallback.postDelayed(mTimeoutCheck, TIMEOUT_CHECK_INTERVAL);
+        }
+    }
+
+    /**
+     * stops writing the file, the module is asked to close it
+     */
+    public synchronized void cancel() {
+        cancel("Cancelled.");
+    }
+
+    /**
+     * stops writing the file, the module is asked to close it
+     *
+     * @param reason the reason that is reported to the callback
+     */
+    public synchronized void cancel(String reason) {
+        if (isWriting()) {
+            abort(null, reason);
+        }
+    }
+
+    /**
+     * handles data that was received from the module
+     *
+     * @param data the received data
+     * @return true if the data was handled by the writer, false if no file is
+     * written and the data is meant for someone else
+     */
+    public synchronized boolean onDataReceived(byte[] data) {
+        if (mPhase == Phase.IDLE) {
+            return false;
+        }
+
+        mLastActivity = SystemClock.elapsedRealtime();
+
+        // responses look like "\n00\r" or "\n01\t1809\r"
+        for (byte b : data) {
+            if (b == '\r') {
+                onResponse();
+                mResponseLength = 0;
+            } else if (b != '\n' && mResponseLength < MAX_RESPONSE_LENGTH) {
+                mResponse[mResponseLength++] = b;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * (re)starts writing the file from its start
+     */
+    private void begin() {
+        mPhase = Phase.RUNNING;
+        mIsOpened = false;
+        mIsEOF = false;
+        mIsCloseSent = false;
+        mBytesWritten = 0;
+        mLastActivity = SystemClock.elapsedRealtime();
+
+        closeFile();
+        mFileWrapper.setToDefaultValues();
+        if (mFileWrapper.getDelimiterReader() == null) {
+            fail(null, "Could not open file.");
+            return;
+        }
+
+        String name = mFileWrapper.getModuleFileName();
+        // closes a file that was left open by an earlier write
+        sendCommand(Command.CLOSE_PREVIOUS, "AT+FCL\r");
+        sendCommand(Command.DELETE, "AT+DEL \"" + name + "\" +\r");
+        sendCommand(Command.OPEN, "AT+FOW \"" + name + "\"\r");
+    }
+
+    /**
+     * sends write commands until the window is full, and the close command
+     * once the whole file is acknowledged
+     */
+    private void fill() {
+        while (mPhase == Phase.RUNNING && mIsOpened && !mIsEOF && mOutstandingWrites < mWindow) {
+            int hexLength = mFileWrapper.readNextHEXFromFile(CHUNK_SIZE, mCommand,
+                    WRITE_PREFIX.length);
+            if (hexLength < 0) {
+                mIsEOF = true;
+                break;
+            }
+
+            int length = WRITE_PREFIX.length + hexLength;
+            mCommand[length++] = '"';
+            mCommand[length++] = '\r';
+
+            sendCommand(Command.WRITE, mCommand, length, hexLength / 2);
+        }
+
+        if (mPhase == Phase.RUNNING && mIsEOF && mOutstandingWrites == 0 && !mIsCloseSent) {
+            mIsCloseSent = true;
+            sendCommand(Command.CLOSE, "AT+FCL\r");
+        }
+    }
+
+    private void onResponse() {
+        if (mResponseLength < 2 || mOutstandingCount == 0) {
+            // not a response or not one to a command of the writer
+            return;
+        }
+
+        Command command = mOutstanding[mOutstandingHead];
+        int bytes = mOutstandingBytes[mOutstandingHead];
+        mOutstandingHead = (mOutstandingHead + 1) % mOutstanding.length;
+        mOutstandingCount--;
+        if (command == Command.WRITE) {
+            mOutstandingWrites--;
+        }
+
+        boolean isSuccess = mResponse[0] == '0' && mResponse[1] == '0';
+
+        switch (mPhase) {
+            case RUNNING:
+                if (isSuccess) {
+                    onCommandSucceeded(command, bytes);
+                } else {
+                    onCommandFailed(command, getErrorCode());
+                }
+                break;
+
+            case DRAINING:
+                if (mOutstandingCount == 0) {
+                    restart();
+                }
+                break;
+
+            case ABORTING:
+                if (mOutstandingCount == 0) {
+                    mPhase = Phase.IDLE;
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private void onCommandSucceeded(Command command, int bytes) {
+        switch (command) {
+            case OPEN:
+                mIsOpened = true;
+                break;
+
+            case WRITE:
+                mBytesWritten += bytes;
+                mCallback.onProgress(mBytesWritten, mFileWrapper.getFileTotalSize());
+                break;
+
+            case CLOSE:
+                mPhase = Phase.IDLE;
+                closeFile();
+                mCallback.onCompleted(mFileWrapper.getModuleFileName(), mBytesWritten);
+                return;
+
+            default:
+                break;
+        }
+
+        scheduleFill();
+    }
+
+    private void onCommandFailed(Command command, String errorCode) {
+        if (command == Command.CLOSE_PREVIOUS || command == Command.DELETE) {
+            // there was no open file or no old file, that's fine
+            scheduleFill();
+            return;
+        }
+
+        ErrorPolicy policy = getErrorPolicy(errorCode);
+        Log.w(TAG, command + " failed with " + errorCode + ", " + policy);
+
+        if (policy == ErrorPolicy.ABORT) {
+            abort(errorCode, "The module responded with error " + errorCode + ".");
+            return;
+        }
+        if (mAttempt >= mMaxAttempts) {
+            abort(errorCode, "The module responded with error " + errorCode + " after "
+                    + mAttempt + " attempts.");
+            return;
+        }
+
+        mAttempt++;
+        mRestartPolicy = policy;
+
+        if (mOutstandingCount > 0) {
+            mPhase = Phase.DRAINING;
+        } else {
+            restart();
+        }
+    }
+
+    private void restart() {
+        // the file is opened again, which is done on the file thread
+        mPhase = Phase.BACKING_OFF;
+
+        if (mRestartPolicy == ErrorPolicy.BACK_OFF) {
+            mWindow = Math.max(1, mWindow / 2);
+            mCallback.postDelayed(mRestartTask, BACK_OFF_DELAY << (mAttempt - 2));
+        } else {
+            mCallback.post(mRestartTask);
+        }
+    }
+
+    /**
+     * the responses are handled on the thread that delivers the received
+     * data, the file is read on the file thread
+     */
+    private void scheduleFill() {
+        if (!mIsFillScheduled) {
+            mIsFillScheduled = true;
+            mCallback.post(mFillTask);
+        }
+    }
+
+    private synchronized void onFillTask() {
+        mIsFillScheduled = false;
+        fill();
+    }
+
+    private synchronized void onBackOffElapsed() {
+        if (mPhase == Phase.BACKING_OFF) {
+            begin();
+        }
+    }
+
+    private synchronized void checkTimeout() {
+        long quietTime = SystemClock.elapsedRealtime() - mLastActivity;
+
+        if (mPhase == Phase.ABORTING && quietTime > ABORT_QUIET_TIME) {
+            mPhase = Phase.IDLE;
+        }
+        if (mPhase == Phase.IDLE) {
+            mIsTimeoutCheckScheduled = false;
+            return;
+        }
+
+        if ((mPhase == Phase.RUNNING || mPhase == Phase.DRAINING)
+                && mOutstandingCount > 0 && quietTime > RESPONSE_TIMEOUT) {
+            abort(null, "The module did not respond.");
+        }
+
+        mCallback.postDelayed(mTimeoutCheck, TIMEOUT_CHECK_INTERVAL);
+    }
+
+    /**
+     * fails the write and asks the module to close the file, the responses
+     * that are still coming are dropped
+     */
+    private void abort(String errorCode, String reason) {
+        closeFile();
+        mPhase = Phase.ABORTING;
+        mLastActivity = SystemClock.elapsedRealtime();
+        sendCommand(Command.CLOSE_PREVIOUS, "AT+FCL\r");
+        mCallback.onFailed(errorCode, reason);
+    }
+
+    private void fail(String errorCode, String reason) {
+        closeFile();
+        mPhase = Phase.IDLE;
+        mCallback.onFailed(errorCode, reason);
+    }
+
+    /**
+     * closes the local file, it's opened again when the file is started again
+     */
+    private void closeFile() {
+        DelimiterReader reader = mFileWrapper.getDelimiterReader();
+        if (reader == null) {
+            return;
+        }
+
+        try {
+            reader.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close the file", e);
+        }
+    }
+
+    /**
+     * @return the error code of the response, for example "1809"
+     */
+    private String getErrorCode() {
+        for (int i = 0; i < mResponseLength; i++) {
+            if (mResponse[i] == '\t') {
+                return new String(mResponse, i + 1, mResponseLength - i - 1, FifoQueue.CHARSET);
+            }
+        }
+        return new String(mResponse, 0, mResponseLength, FifoQueue.CHARSET);
+    }
+
+    private void sendCommand(Command command, String text) {
+        byte[] bytes = text.getBytes(FifoQueue.CHARSET);
+        sendCommand(command, bytes, bytes.length, 0);
+    }
+
+    private void sendCommand(Command command, byte[] data, int length, int bytes) {
+        if (mPhase == Phase.ABORTING && command != Command.CLOSE_PREVIOUS) {
+            return;
+        }
+        if (mOutstandingCount == mOutstanding.length) {
+            fail(null, "Too many outstanding commands.");
+            return;
+        }
+
+        int index = (mOutstandingHead + mOutstandingCount) % mOutstanding.length;
+        mOutstanding[index] = command;
+        mOutstandingBytes[index] = bytes;
+        mOutstandingCount++;
+        if (command == Command.WRITE) {
+            mOutstandingWrites++;
+        }
+
+        if (!mCallback.sendCommand(data, length) && mPhase != Phase.ABORTING) {
+            // the commands that were sent before are still answered
+            closeFile();
+            mPhase = Phase.ABORTING;
+            mCallback.onFailed(null, "The TX buffer is full.");
+        }
+    }
+}
@@ -1,19 +1,108 @@
 package nl.fits4all.laird.serial.bt.ble.vsp;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
 import android.app.Activity;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
 import android.net.Uri;
+import android.util.Log;
 
 import nl.fits4all.laird.serial.misc.FileWrapper;
+import nl.fits4all.laird.serial.misc.TransferCheckpoints;
 
 public abstract class FileAndFifoAndVspManager extends VirtualSerialPortDevice {
+    private static final String TAG = "FileAndFifoAndVspManager";
+
     protected static final int MAX_DATA_TO_READ_FROM_TEXT_FILE = 40;
+    /**
+     * the bytes read from the file at once when streaming a file, the file is
+     * read again once less than this is left in the TX buffer
+     */
+    protected static final int FILE_READ_BLOCK_SIZE = 4096;
+    /**
+     * the confirmed bytes after which the checkpoint of an upload is stored
+     * again, it's also stored whenever the upload fails
+     */
+    protected static final int CHECKPOINT_INTERVAL = 64 * 1024;
     protected FileWrapper mFileWrapper;
     protected FileState mFileState;
 
+    /**
+     * the file that is streamed to the remote device, null while no file is
+     * uploaded. Only read on the pump thread, but it can be closed from any
+     * thread
+     */
+    private volatile ReadableByteChannel mFileChannel;
+    private final ByteBuffer mFileReadBuffer = ByteBuffer.allocate(FILE_READ_BLOCK_SIZE);
+    private boolean mIsFileEOF;
+    private volatile long mFileBytesRead;
+
+    private final TransferCheckpoints mCheckpoints;
+    private Uri mFileUri;
+    private long mFileTotalSize;
+    private volatile boolean mIsFileUploadResumable;
+    /**
+     * the bytes of the file that the remote device acknowledged, only
+     * counted for resumable uploads
+     */
+    private long mFileBytesConfirmed;
+    private long mLastCheckpoint;
+
+    /**
+     * writes files to the file system of the module in command mode
+     */
+    private final CommandModeFileWriter mModuleFileWriter;
+
     public FileAndFifoAndVspManager(Activity activity) {
         super(activity);
 
         mFileState = FileState.FILE_NOT_CHOSEN;
+        mCheckpoints = new TransferCheckpoints(activity);
+        mModuleFileWriter = new CommandModeFileWriter(new CommandModeFileWriter.Callback() {
+            @Override
+            public boolean sendCommand(byte[] command, int length) {
+                if (!mTxBuffer.write(command, 0, length)) {
+                    return false;
+                }
+                mFifoAndVspManagerState = FifoAndVspManagerState.UPLOADING;
+                mTxPump.schedule();
+                return true;
+            }
+
+            @Override
+            public void post(Runnable task) {
+                mTxPump.post(task);
+            }
+
+            @Override
+            public void postDelayed(Runnable task, long delay) {
+                mTxPump.postDelayed(task, delay);
+            }
+
+            @Override
+            public void onProgress(long bytesWritten, long totalBytes) {
+                onModuleFileWriteProgress(bytesWritten, totalBytes);
+            }
+
+            @Override
+            public void onCompleted(String moduleFileName, long bytesWritten) {
+                // the upload ends once the TX buffer is empty
+                mTxPump.schedule();
+                onModuleFileWriteCompleted(moduleFileName, bytesWritten);
+            }
+
+            @Override
+            public void onFailed(String errorCode, String reason) {
+                mTxPump.schedule();
+                onModuleFileWriteFailed(errorCode, reason);
+            }
+        });
     }
 
     public FileState getFileState() {
@@ -75,5 +164,380 @@ public abstract class FileAndFifoAndVspManager extends VirtualSerialPortDevice {
 
         mFifoAndVspManagerState = FifoAndVspManagerState.UPLOADING;
         mFileWrapper.setToDefaultValues();
+        startHighThroughputProfile();
+    }
+
+    /**
+     * streams the content of the file to the remote device. The file is read
+     * in blocks of {@link #FILE_READ_BLOCK_SIZE} on the pump thread whenever
+     * the TX buffer runs low, so the file is never loaded into memory at
+     * once. Progress is reported to
+     * {@link #onFileUploadProgress(long, long)}, the result to
+     * {@link #onFileUploadCompleted(long)} or
+     * {@link #onFileUploadFailed(String)}
+     * <p>
+     * A resumable upload is sent with write with response, so the bytes the
+     * remote device acknowledged can be stored as a checkpoint. It starts at
+     * the checkpoint of an earlier upload of the same file to this device,
+     * and is started again from its checkpoint once the device is connected
+     * again after a disconnect
+     *
+     * @param uri    the uri of the file to upload
+     * @param resume true to continue an earlier upload of the file and after
+     *               a reconnect, false to start at the start of the file
+     * @throws IOException if the file could not be opened
+     */
+    public void startFileUpload(final Uri uri, final boolean resume) throws IOException {
+        if (mModuleFileWriter.isActive()) {
+            throw new IllegalStateException("A file is written to the module");
+        }
+        setFile(uri);
+
+        final String address = mBluetoothDevice.getAddress();
+        final long fileSize = mFileWrapper.getFileTotalSize();
+        final long offset = resume ? mCheckpoints.getOffset(address, uri, fileSize) : 0;
+        InputStream inputStream = mFileWrapper.openInputStream(offset);
+        final ReadableByteChannel fileChannel = Channels.newChannel(inputStream);
+
+        if (offset > 0) {
+            Log.i(TAG, "Resuming upload of " + uri + " at " + offset + " bytes");
+        }
+
+        mTxPump.post(() -> {
+            // only one file at a time, the new one replaces the old one
+            if (closeFileChannel(true)) {
+                onFileUploadFailed("Replaced by a new file upload.");
+            }
+
+            synchronized (FileAndFifoAndVspManager.this) {
+                mFileChannel = fileChannel;
+                mFileUri = uri;
+                mFileTotalSize = fileSize;
+                mIsFileUploadResumable = resume;
+                mFileBytesRead = offset;
+                mFileBytesConfirmed = offset;
+                mLastCheckpoint = offset;
+            }
+            mIsFileEOF = false;
+            mCheckpoints.clearInterrupted(address);
+
+            mFifoAndVspManagerState = FifoAndVspManagerState.UPLOADING;
+            startHighThroughputProfile();
+            mTxPump.schedule();
+        });
+    }
+
+    /**
+     * stops the file upload, the data of the file that is already in the TX
+     * buffer is discarded
+     */
+    public void cancelFileUpload() {
+        mTxPump.post(() -> {
+            if (closeFileChannel(false)) {
+                mTxBuffer.flush();
+                onUploaded();
+                onFileUploadFailed("Cancelled.");
+            }
+        });
+    }
+
+    /**
+     * @return true while a file is streamed to the remote device
+     */
+    public boolean isFileUploading() {
+        return mFileChannel != null;
+    }
+
+    /**
+     * writes a file to the file system of the module, which has to be in
+     * command mode. The file is stored under
+     * {@link FileWrapper#getModuleFileName()}, so a compiled smartBASIC
+     * application can be run afterwards. Progress is reported to
+     * {@link #onModuleFileWriteProgress(long, long)}, the result to
+     * {@link #onModuleFileWriteCompleted(String, long)} or
+     * {@link #onModuleFileWriteFailed(String, String)}. While the file is
+     * written the responses of the module are handled by the writer and
+     * {@link #handleModuleResponse(byte[])} returns true
+     *
+     * @param uri    the uri of the file to write
+     * @param window the write commands that may be waiting for a response of
+     *               the module
+     * @throws IOException if the file could not be opened
+     */
+    public void startModuleFileWrite(Uri uri, int window) throws IOException {
+        if (isFileUploading() || mModuleFileWriter.isActive()) {
+            throw new IllegalStateException("A file is already uploaded");
+        }
+
+        setFile(uri);
+        mFileWrapper.setToDefaultValues();
+        if (mFileWrapper.getFileInputStream() == null) {
+            throw new FileNotFoundException("Could not open " + uri);
+        }
+
+        startHighThroughputProfile();
+        mModuleFileWriter.start(mFileWrapper, window);
+    }
+
+    /**
+     * stops writing the file to the module, the commands that were not sent
+     * yet are discarded
+     */
+    public void cancelModuleFileWrite() {
+        mTxBuffer.flush();
+        mModuleFileWriter.cancel();
+    }
+
+    /**
+     * @return true while a file is written to the module
+     */
+    public boolean isModuleFileWriting() {
+        return mModuleFileWriter.isWriting();
+    }
+
+    /**
+     * @return the writer, to change what it does on the error codes of the
+     * module
+     */
+    public CommandModeFileWriter getModuleFileWriter() {
+        return mModuleFileWriter;
+    }
+
+    /**
+     * passes received data to the module file writer, call this first from
+     * {@link #onVspReceiveData(BluetoothGatt, BluetoothGattCharacteristic)}
+     *
+     * @param data the received data
+     * @return true if the data were responses to the writer and should not be
+     * handled otherwise
+     */
+    protected boolean handleModuleResponse(byte[] data) {
+        return mModuleFileWriter.onDataReceived(data);
+    }
+
+    @Override
+    protected void uploadNextData() {
+        ReadableByteChannel fileChannel = mFileChannel;
+        if (fileChannel != null && !mIsFileEOF && mTxBuffer.getSize() < FILE_READ_BLOCK_SIZE) {
+            try {
+                readNextFileBlock(fileChannel);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read the file", e);
+                // the channel is already closed if the connection was released
+                if (closeFileChannel(true)) {
+                    mTxBuffer.flush();
+                    onUploaded();
+                    onFileUploadFailed(e.getMessage());
+                }
+                return;
+            }
+        }
+
+        super.uploadNextData();
+    }
+
+    /**
+     * reads the next block of the file into the TX buffer
+     */
+    private void readNextFileBlock(ReadableByteChannel fileChannel) throws IOException {
+        mFileReadBuffer.clear();
+
+        int read = 0;
+        while (read == 0) {
+            read = fileChannel.read(mFileReadBuffer);
+        }
+
+        if (read < 0) {
+            mIsFileEOF = true;
+            return;
+        }
+
+        mTxBuffer.write(mFileReadBuffer.array(), 0, mFileReadBuffer.position());
+        mFileBytesRead += read;
+
+        // everything that is not in the TX buffer anymore was sent
+        onFileUploadProgress(mFileBytesRead - mTxBuffer.getSize(), mFileTotalSize);
+    }
+
+    @Override
+    protected void onUploaded() {
+        if (mModuleFileWriter.isWriting()) {
+            // the TX buffer runs empty between the commands of the writer
+            return;
+        }
+        super.onUploaded();
+
+        if (mIsFileEOF && closeFileChannel(false)) {
+            onFileUploadProgress(mFileBytesRead, mFileTotalSize);
+            onFileUploadCompleted(mFileBytesRead);
+        }
+    }
+
+    @Override
+    protected void onUploadFailed(final String errorCode) {
+        super.onUploadFailed(errorCode);
+
+        if (closeFileChannel(true)) {
+            onFileUploadFailed(errorCode);
+        }
+    }
+
+    /**
+     * a write without response is confirmed once it's sent, not once the
+     * remote device received it, so a resumable upload is never streamed
+     */
+    @Override
+    public boolean isStreaming() {
+        return super.isStreaming() && !(mFileChannel != null && mIsFileUploadResumable);
+    }
+
+    @Override
+    public void onVspSendDataSuccess(final BluetoothGatt gatt,
+                                     final BluetoothGattCharacteristic ch) {
+        onFileDataConfirmed(ch.getValue().length);
+        super.onVspSendDataSuccess(gatt, ch);
+    }
+
+    @Override
+    protected void onConnectionReady() {
+        super.onConnectionReady();
+
+        // continue the upload that was interrupted by the last disconnect
+        Uri uri = mCheckpoints.getInterrupted(mBluetoothDevice.getAddress());
+        if (uri != null && !isFileUploading()) {
+            try {
+                startFileUpload(uri, true);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to resume the upload of " + uri, e);
+                mCheckpoints.clearInterrupted(mBluetoothDevice.getAddress());
+                onFileUploadFailed(e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        // the pump thread is stopped, so the upload fails right here
+        synchronized (this) {
+            if (mFileChannel != null && mIsFileUploadResumable) {
+                mCheckpoints.setInterrupted(mBluetoothDevice.getAddress(), mFileUri);
+            }
+        }
+        if (closeFileChannel(true)) {
+            onFileUploadFailed("Disconnected.");
+        }
+        mModuleFileWriter.cancel("Disconnected.");
+        super.release();
+    }
+
+    /**
+     * counts the file data the remote device acknowledged and stores a
+     * checkpoint every {@link #CHECKPOINT_INTERVAL} bytes. Only resumable
+     * uploads are counted, their writes are acknowledged by the remote
+     * device, see {@link #isStreaming()}
+     *
+     * @param length the bytes of the write that was acknowledged
+     */
+    private synchronized void onFileDataConfirmed(int length) {
+        if (mFileChannel == null || !mIsFileUploadResumable) {
+            return;
+        }
+
+        // data that is still in the TX buffer was not sent yet
+        mFileBytesConfirmed = Math.min(mFileBytesConfirmed + length,
+                mFileBytesRead - mTxBuffer.getSize());
+
+        if (mFileBytesConfirmed - mLastCheckpoint >= CHECKPOINT_INTERVAL) {
+            saveCheckpoint();
+        }
+    }
+
+    private synchronized void saveCheckpoint() {
+        mCheckpoints.setOffset(mBluetoothDevice.getAddress(), mFileUri,
+                mFileTotalSize, mFileBytesConfirmed);
+        mLastCheckpoint = mFileBytesConfirmed;
+    }
+
+    /**
+     * closes the file that is uploaded
+     *
+     * @param keepCheckpoint true to store the checkpoint of a failed resumable
+     *                       upload, false to forget it because the upload completed
+     *                       or was cancelled
+     * @return true if a file was uploaded, false if there was none or it was
+     * already closed
+     */
+    private synchronized boolean closeFileChannel(boolean keepCheckpoint) {
+        ReadableByteChannel fileChannel = mFileChannel;
+        if (fileChannel == null) {
+            return false;
+        }
+
+        if (keepCheckpoint && mIsFileUploadResumable) {
+            saveCheckpoint();
+        } else {
+            mCheckpoints.remove(mBluetoothDevice.getAddress(), mFileUri);
+        }
+
+        mFileChannel = null;
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close the file", e);
+        }
+        return true;
+    }
+
+    /**
+     * called on the pump thread whenever a block of the file was read
+     *
+     * @param bytesSent  the bytes of the file that were sent
+     * @param totalBytes the size of the file, -1 or 0 if it's unknown
+     */
+    protected void onFileUploadProgress(long bytesSent, long totalBytes) {
+    }
+
+    /**
+     * called on the pump thread once the whole file was sent
+     *
+     * @param bytesSent the size of the file
+     */
+    protected void onFileUploadCompleted(long bytesSent) {
+    }
+
+    /**
+     * called on the pump thread when the file upload failed or was cancelled
+     *
+     * @param reason the reason the upload failed
+     */
+    protected void onFileUploadFailed(String reason) {
+    }
+
+    /**
+     * called whenever the module acknowledged a write of the file
+     *
+     * @param bytesWritten the bytes of the file that were written
+     * @param totalBytes   the size of the file, -1 or 0 if it's unknown
+     */
+    protected void onModuleFileWriteProgress(long bytesWritten, long totalBytes) {
+    }
+
+    /**
+     * called once the file is written and closed by the module
+     *
+     * @param moduleFileName the name of the file on the module
+     * @param bytesWritten   the size of the file
+     */
+    protected void onModuleFileWriteCompleted(String moduleFileName, long bytesWritten) {
+    }
+
+    /**
+     * called when writing the file to the module failed or was cancelled
+     *
+     * @param errorCode the error code of the module, or null if it failed for
+     *                  another reason
+     * @param reason    the reason it failed
+     */
+    protected void onModuleFileWriteFailed(String errorCode, String reason) {
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,251 @@
+package nl.fits4all.laird.serial.bt.ble.vsp;
+
+import java.util.Arrays;
+
+import android.os.SystemClock;
+
+/**
+ * Keeps the throughput and latency statistics of a VSP connection.
+ * <p>
+ * The current rates are taken over the last second in buckets of 100
+ * milliseconds, the average rates over the whole connection. Write
+ * latencies are kept for the last {@link #LATENCY_SAMPLES} writes to
+ * calculate the percentiles. Recording never allocates, so it can be done
+ * for every chunk.
+ */
+public class TransferStatistics {
+    /**
+     * the total write latencies the percentiles are calculated from
+     */
+    public static final int LATENCY_SAMPLES = 256;
+
+    private static final int BUCKET_DURATION = 100;
+    private static final int BUCKETS = 10;
+
+    private long mStartTime;
+
+    private long mTxBytes;
+    private long mRxBytes;
+    private long mTxChunks;
+    private long mRxChunks;
+
+    /**
+     * bytes per bucket of the last second, indexed by the bucket number
+     * modulo {@link #BUCKETS}
+     */
+    private final long[] mTxBuckets = new long[BUCKETS];
+    private final long[] mRxBuckets = new long[BUCKETS];
+    private final long[] mTxBucketNumbers = new long[BUCKETS];
+    private final long[] mRxBucketNumbers = new long[BUCKETS];
+
+    /**
+     * the latencies in microseconds of the last writes, a ring buffer
+     */
+    private final long[] mLatencies = new long[LATENCY_SAMPLES];
+    private int mLatencyCount;
+    private int mLatencyIndex;
+
+    private long mStalls;
+    private long mStallTime;
+    /**
+     * the time the current stall started, -1 while not stalled
+     */
+    private long mStallStart;
+
+    public TransferStatistics() {
+        reset();
+    }
+
+    /**
+     * clears all statistics, the averages are calculated from now on
+     */
+    public synchronized void reset() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mTxBytes = 0;
+        mRxBytes = 0;
+        mTxChunks = 0;
+        mRxChunks = 0;
+        Arrays.fill(mTxBucketNumbers, -1);
+        Arrays.fill(mRxBucketNumbers, -1);
+        mLatencyCount = 0;
+        mLatencyIndex = 0;
+        mStalls = 0;
+        mStallTime = 0;
+        mStallStart = -1;
+    }
+
+    /**
+     * records a chunk that was written to the remote device
+     *
+     * @param length  the bytes of the chunk
+     * @param latency the time in microseconds from initiating the write until
+     *                it was acknowledged
+     */
+    public synchronized void onTx(int length, long latency) {
+        mTxBytes += length;
+        mTxChunks++;
+        addToBucket(mTxBuckets, mTxBucketNumbers, length);
+
+        mLatencies[mLatencyIndex] = latency;
+        mLatencyIndex = (mLatencyIndex + 1) % LATENCY_SAMPLES;
+        mLatencyCount = Math.min(mLatencyCount + 1, LATENCY_SAMPLES);
+    }
+
+    /**
+     * records a chunk that was received from the remote device
+     *
+     * @param length the bytes of the chunk
+     */
+    public synchronized void onRx(int length) {
+        mRxBytes += length;
+        mRxChunks++;
+        addToBucket(mRxBuckets, mRxBucketNumbers, length);
+    }
+
+    /**
+     * records a change of the buffer state of the remote device, the time the
+     * buffer was full counts as stall time
+     *
+     * @param isBufferSpaceAvailable false if the buffer of the remote device
+     *                               is full
+     */
+    public synchronized void onBufferSpaceAvailable(boolean isBufferSpaceAvailable) {
+        long now = SystemClock.elapsedRealtime();
+
+        if (!isBufferSpaceAvailable && mStallStart < 0) {
+            mStalls++;
+            mStallStart = now;
+        } else if (isBufferSpaceAvailable && mStallStart >= 0) {
+            mStallTime += now - mStallStart;
+            mStallStart = -1;
+        }
+    }
+
+    public synchronized long getTxBytes() {
+        return mTxBytes;
+    }
+
+    public synchronized long getRxBytes() {
+        return mRxBytes;
+    }
+
+    public synchronized long getTxChunks() {
+        return mTxChunks;
+    }
+
+    public synchronized long getRxChunks() {
+        return mRxChunks;
+    }
+
+    /**
+     * @return the bytes per second sent over the last second
+     */
+    public synchronized long getCurrentTxRate() {
+        return sumBuckets(mTxBuckets, mTxBucketNumbers) * 1000 / (BUCKETS * BUCKET_DURATION);
+    }
+
+    /**
+     * @return the bytes per second received over the last second
+     */
+    public synchronized long getCurrentRxRate() {
+        return sumBuckets(mRxBuckets, mRxBucketNumbers) * 1000 / (BUCKETS * BUCKET_DURATION);
+    }
+
+    /**
+     * @return the bytes per second sent since the statistics were reset
+     */
+    public synchronized long getAverageTxRate() {
+        return mTxBytes * 1000 / getDuration();
+    }
+
+    /**
+     * @return the bytes per second received since the statistics were reset
+     */
+    public synchronized long getAverageRxRate() {
+        return mRxBytes * 1000 / getDuration();
+    }
+
+    /**
+     * @return the times the buffer of the remote device got full
+     */
+    public synchronized long getStalls() {
+        return mStalls;
+    }
+
+    /**
+     * @return the total time in milliseconds the buffer of the remote device
+     * was full, including the current stall
+     */
+    public synchronized long getStallTime() {
+        if (mStallStart >= 0) {
+            return mStallTime + SystemClock.elapsedRealtime() - mStallStart;
+        }
+        return mStallTime;
+    }
+
+    /**
+     * @return true if at least one write latency was recorded
+     */
+    public synchronized boolean hasLatencies() {
+        return mLatencyCount > 0;
+    }
+
+    /**
+     * calculates the write latency percentiles over the last writes
+     *
+     * @param percentiles the percentiles to calculate, between 0 and 100
+     * @return the latencies in microseconds, in the order of the percentiles,
+     * or zeros if no write was recorded
+     */
+    public synchronized long[] getLatencyPercentiles(int... percentiles) {
+        long[] result = new long[percentiles.length];
+        if (mLatencyCount == 0) {
+            return result;
+        }
+
+        long[] sorted = Arrays.copyOf(mLatencies, mLatencyCount);
+        Arrays.sort(sorted);
+
+        for (int i = 0; i < percentiles.length; i++) {
+            // nearest rank
+            int rank = (int) Math.ceil(percentiles[i] / 100.0 * sorted.length);
+            result[i] = sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the time in milliseconds since the statistics were reset, at
+     * least 1
+     */
+    private long getDuration() {
+        return Math.max(1, SystemClock.elapsedRealtime() - mStartTime);
+    }
+
+    private void addToBucket(long[] buckets, long[] bucketNumbers, int length) {
+        long bucketNumber = SystemClock.elapsedRealtime() / BUCKET_DURATION;
+        int index = (int) (bucketNumber % BUCKETS);
+
+        // the bucket still holds the bytes of a second ago
+        if (bucketNumbers[index] != bucketNumber) {
+            bucketNumbers[index] = bucketNumber;
+            buckets[index] = 0;
+        }
+
+        buckets[index] += length;
+    }
+
+    private long sumBuckets(long[] buckets, long[] bucketNumbers) {
+        long currentBucketNumber = SystemClock.elapsedRealtime() / BUCKET_DURATION;
+        long sum = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            if (currentBucketNumber - bucketNumbers[i] < BUCKETS) {
+                sum += buckets[i];
+            }
+        }
+
+        return sum;
+    }
+}
@@ -0,0 +1,104 @@
+package nl.fits4all.laird.serial.bt.ble.vsp;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * Sends the data of the TX buffer to the remote device on its own thread.
+ * <p>
+ * The next chunk is sent as soon as the previous write was acknowledged and
+ * the module has buffer space, the UI thread is never involved. A pacing
+ * delay can be set for modules that need time between the writes.
+ */
+public class TxPump {
+    private final HandlerThread mPumpThread;
+    private final Handler mPumpHandler;
+    private final Runnable mSendNextChunk;
+
+    /**
+     * delay in milliseconds between two chunks, 0 sends the next chunk
+     * immediately
+     */
+    private volatile long mPacingDelay = 0;
+
+    /**
+     * @param name          the name of the pump thread
+     * @param sendNextChunk called on the pump thread to send the next chunk
+     */
+    public TxPump(String name, Runnable sendNextChunk) {
+        mSendNextChunk = sendNextChunk;
+
+        mPumpThread = new HandlerThread(name);
+        mPumpThread.start();
+        mPumpHandler = new Handler(mPumpThread.getLooper());
+    }
+
+    public long getPacingDelay() {
+        return mPacingDelay;
+    }
+
+    /**
+     * @param pacingDelay the delay in milliseconds between two chunks, 0 to
+     *                    send the chunks as fast as the device allows
+     */
+    public void setPacingDelay(long pacingDelay) {
+        mPacingDelay = Math.max(0, pacingDelay);
+    }
+
+    /**
+     * sends the next chunk on the pump thread, after the pacing delay if
+     * one is set
+     */
+    public void schedule() {
+        if (mPacingDelay > 0) {
+            mPumpHandler.postDelayed(mSendNextChunk, mPacingDelay);
+        } else {
+            mPumpHandler.post(mSendNextChunk);
+        }
+    }
+
+    /**
+     * sends the next chunk on the pump thread after the given delay,
+     * regardless of the pacing delay
+     *
+     * @param delay the delay in milliseconds
+     */
+    public void schedule(long delay) {
+        mPumpHandler.postDelayed(mSendNextChunk, delay);
+    }
+
+    /**
+     * runs the given task on the pump thread, before any chunk that is
+     * scheduled after it
+     *
+     * @param task the task to run
+     */
+    public void post(Runnable task) {
+        mPumpHandler.post(task);
+    }
+
+    /**
+     * runs the given task on the pump thread after the given delay
+     *
+     * @param task  the task to run
+     * @param delay the delay in milliseconds
+     */
+    public void postDelayed(Runnable task, long delay) {
+        mPumpHandler.postDelayed(task, delay);
+    }
+
+    /**
+     * removes all scheduled chunks
+     */
+    public void cancel() {
+        mPumpHandler.removeCallbacks(mSendNextChunk);
+    }
+
+    /**
+     * stops the pump thread, the pump can't be used afterwards
+     */
+    public void quit() {
+        mPumpHandler.removeCallbacksAndMessages(null);
+        mPumpThread.quitSafely();
+    }
+}
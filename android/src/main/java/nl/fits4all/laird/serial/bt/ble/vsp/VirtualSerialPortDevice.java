@@ -1,20 +1,23 @@
 package nl.fits4all.laird.serial.bt.ble.vsp;
 
+import java.util.Arrays;
 import java.util.UUID;
 
-import org.apache.commons.lang3.StringEscapeUtils;
-
 import android.app.Activity;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
-import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
 import nl.fits4all.laird.serial.bt.ble.BleBaseDeviceManager;
+import nl.fits4all.laird.serial.bt.ble.GattOperation;
 import nl.fits4all.laird.serial.misc.FifoQueue;
+import nl.fits4all.laird.serial.misc.Framer;
+import nl.fits4all.laird.serial.misc.RawFramer;
 
 /**
  * Responsible for the communication between the android device and a module
@@ -97,16 +100,42 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
      * BLE module buffer full or not?
      */
     private boolean mIsBufferSpaceAvailableNewState = true;
+    /**
+     * stream data to the module with write without response, the module
+     * buffer state of the modem out characteristic is then the only throttle
+     */
+    private boolean mWriteWithoutResponse = false;
+    /**
+     * request a high connection priority and the LE 2M PHY while uploading
+     */
+    private boolean mHighThroughput = false;
+    /**
+     * the connection priority to go back to once an upload has finished
+     */
+    private int mIdleConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    /**
+     * true while the high throughput link settings are requested
+     */
+    private boolean mIsHighThroughputActive = false;
 
     /*
      * counters for the total data send and received
      */
     private int mRxCounter;
     private int mTxCounter;
+    /**
+     * throughput and latency statistics since the connection got ready
+     */
+    protected final TransferStatistics mStatistics = new TransferStatistics();
+    /**
+     * the time in nanoseconds the write in flight was initiated
+     */
+    private volatile long mWriteStartTime;
 
     /**
      * this should be no more than 20 as the Laird module can only receive a
-     * total of 20 bytes on every sent
+     * total of 20 bytes on every sent. Only used while the MTU was not
+     * negotiated, otherwise every write is sized to the MTU
      */
     protected static int MAX_DATA_TO_READ_FROM_BUFFER = 15;
     /**
@@ -117,24 +146,51 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
      * Receiving data from module
      */
     protected FifoQueue mRxBuffer;
-    protected Handler sendDataHandler = new Handler();
-    protected int SEND_DATA_TO_REMOTE_DEVICE_DELAY = 10;
     /**
-     * this is used to get the previously read data from the TX buffer and store
-     * it temporary into this variable
+     * splits the data in the RX buffer into frames
+     */
+    protected volatile Framer mRxFramer = new RawFramer();
+    /**
+     * sends the next chunk of the TX buffer whenever the previous write was
+     * acknowledged and the module has buffer space
+     */
+    protected final TxPump mTxPump;
+    /**
+     * delay before trying again when a write could not be initiated
+     */
+    protected static final int SEND_DATA_RETRY_DELAY = 10;
+    /**
+     * true while a write to the remote device waits for its callback, only
+     * one write can be in flight at a time
+     */
+    private volatile boolean mIsWriteInProgress = false;
+    /**
+     * the bytes at the start of the TX buffer that are being written, they're
+     * only removed from the buffer once the write succeeded so a write that
+     * fails or times out is sent again
+     */
+    private volatile int mTxChunkLength = 0;
+    /**
+     * the writes of the same chunk that failed in a row
      */
-    protected StringBuilder mTxDest = new StringBuilder();
+    private int mSendDataFailures = 0;
     /**
-     * this is used to get the previously read data from the RX buffer and store
+     * the writes of the same chunk that may fail in a row before the upload
+     * fails
+     */
+    protected static final int MAX_SEND_DATA_FAILURES = 3;
+    /**
+     * this is used to get the previously read data from the TX buffer and store
      * it temporary into this variable
      */
-    protected StringBuilder mRxDest = new StringBuilder();
+    protected byte[] mTxDest = new byte[MAX_DATA_TO_READ_FROM_BUFFER];
 
     public VirtualSerialPortDevice(Activity activity) {
         super(activity);
 
         mRxBuffer = new FifoQueue();
         mTxBuffer = new FifoQueue();
+        mTxPump = new TxPump(TAG, this::pumpNextData);
 
         mFifoAndVspManagerState = FifoAndVspManagerState.WAITING;
     }
@@ -171,6 +227,10 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
         return mTxCounter;
     }
 
+    public TransferStatistics getStatistics() {
+        return mStatistics;
+    }
+
     public FifoQueue getRxBuffer() {
         return mRxBuffer;
     }
@@ -179,10 +239,131 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
         return mTxBuffer;
     }
 
+    public Framer getRxFramer() {
+        return mRxFramer;
+    }
+
+    /**
+     * sets how the received data is split into frames, the data that is
+     * currently in the RX buffer is kept
+     *
+     * @param rxFramer the framer to use for the RX buffer
+     */
+    public void setRxFramer(Framer rxFramer) {
+        rxFramer.reset();
+        mRxFramer = rxFramer;
+    }
+
+    /**
+     * reads the next complete frame from the RX buffer
+     *
+     * @return the frame or null if no complete frame was received yet
+     */
+    protected byte[] readNextRxFrame() {
+        return mRxBuffer.read(mRxFramer);
+    }
+
     public boolean isValidVspDevice() {
         return mIsValidVspDevice;
     }
 
+    /**
+     * use write without response for sending data to the remote device when
+     * it's supported, see {@link #isStreaming()}
+     *
+     * @param writeWithoutResponse true to stream the data, false to wait for a
+     *                             response on every write
+     */
+    public void setWriteWithoutResponse(boolean writeWithoutResponse) {
+        mWriteWithoutResponse = writeWithoutResponse;
+    }
+
+    public boolean isWriteWithoutResponse() {
+        return mWriteWithoutResponse;
+    }
+
+    /**
+     * use a high connection priority and the LE 2M PHY while uploading, the
+     * link goes back to the idle connection priority once the upload is done
+     * and keeps its PHY
+     *
+     * @param highThroughput true to request the high throughput link settings
+     *                       when an upload starts
+     */
+    public void setHighThroughput(boolean highThroughput) {
+        mHighThroughput = highThroughput;
+    }
+
+    public boolean isHighThroughput() {
+        return mHighThroughput;
+    }
+
+    /**
+     * @param idleConnectionPriority the connection priority to use when not
+     *                               uploading, see
+     *                               {@link #requestConnectionPriority(int)}
+     */
+    public void setIdleConnectionPriority(int idleConnectionPriority) {
+        mIdleConnectionPriority = idleConnectionPriority;
+    }
+
+    public int getIdleConnectionPriority() {
+        return mIdleConnectionPriority;
+    }
+
+    /**
+     * requests a short connection interval and the LE 2M PHY if the high
+     * throughput profile is enabled, called when an upload starts
+     */
+    protected void startHighThroughputProfile() {
+        if (!mHighThroughput || mIsHighThroughputActive || mBluetoothGatt == null) {
+            return;
+        }
+
+        mIsHighThroughputActive = true;
+        requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK);
+    }
+
+    /**
+     * goes back to the idle connection priority, called when an upload has
+     * finished. The PHY is left alone, the stack may have chosen the LE 2M
+     * PHY by itself before the upload
+     */
+    protected void stopHighThroughputProfile() {
+        if (!mIsHighThroughputActive) {
+            return;
+        }
+
+        mIsHighThroughputActive = false;
+        requestConnectionPriority(mIdleConnectionPriority);
+    }
+
+    /**
+     * @param pacingDelay the delay in milliseconds between two writes, 0 to
+     *                    send the next write as soon as the previous one was
+     *                    acknowledged
+     */
+    public void setPacingDelay(long pacingDelay) {
+        mTxPump.setPacingDelay(pacingDelay);
+    }
+
+    public long getPacingDelay() {
+        return mTxPump.getPacingDelay();
+    }
+
+    /**
+     * data is only streamed when the RX characteristic can be written without
+     * response and the modem out characteristic is there to tell when the
+     * module buffer is full, otherwise data could get lost
+     *
+     * @return true if the data is currently sent with write without response
+     */
+    public boolean isStreaming() {
+        return mWriteWithoutResponse && mCharRx != null && mCharModemOut != null
+                && (mCharRx.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+    }
+
     public void clearRxCounter() {
         mRxCounter = 0;
     }
@@ -206,13 +387,43 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
      * @param dataToBeSend the data to send to the remote device
      */
     public void startDataTransfer(String dataToBeSend) {
-        mFifoAndVspManagerState = FifoAndVspManagerState.UPLOADING;
-        writeToFifoAndUploadDataToRemoteDevice(dataToBeSend);
+        startDataTransfer(dataToBeSend.getBytes(FifoQueue.CHARSET));
+    }
+
+    /**
+     * Send binary data to remote device
+     *
+     * @param dataToBeSend the data to send to the remote device
+     */
+    public void startDataTransfer(byte[] dataToBeSend) {
+        mTxPump.post(() -> {
+            mFifoAndVspManagerState = FifoAndVspManagerState.UPLOADING;
+            startHighThroughputProfile();
+            writeToFifoAndUploadDataToRemoteDevice(dataToBeSend);
+        });
+    }
+
+    /**
+     * runs on the pump thread, sends the next data when uploading, the module
+     * has buffer space and no other write is in flight
+     */
+    private void pumpNextData() {
+        if (mFifoAndVspManagerState == FifoAndVspManagerState.UPLOADING
+                && isBufferSpaceAvailable() && !mIsWriteInProgress) {
+            uploadNextData();
+        }
+    }
+
+    /**
+     * @return the total bytes to send to the remote device on every write
+     */
+    protected int getMaxDataToReadFromBuffer() {
+        return getMtu() > DEFAULT_MTU ? getMaxPayloadSize() : MAX_DATA_TO_READ_FROM_BUFFER;
     }
 
     /**
-     * reads from the RX buffer content based on the
-     * MAX_DATA_TO_READ_FROM_BUFFER and sends it to the remote device
+     * reads from the TX buffer content based on the
+     * {@link #getMaxDataToReadFromBuffer()} and sends it to the remote device
      */
     protected void uploadNextDataFromFifoToRemoteDevice() {
         if (mBluetoothGatt == null
@@ -220,15 +431,25 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
             return;
         }
 
-        if (mTxBuffer.read(mTxDest, MAX_DATA_TO_READ_FROM_BUFFER) != 0) {
-            String dataToWriteToRemoteBleDevice = mTxDest.toString();
-            mTxDest.delete(0, MAX_DATA_TO_READ_FROM_BUFFER);
+        int maxDataToReadFromBuffer = getMaxDataToReadFromBuffer();
+        if (mTxDest.length < maxDataToReadFromBuffer) {
+            mTxDest = new byte[maxDataToReadFromBuffer];
+        }
+
+        int totalRead = mTxBuffer.peek(mTxDest, 0, maxDataToReadFromBuffer);
+        if (totalRead != 0) {
+            byte[] dataToWriteToRemoteBleDevice = Arrays.copyOf(mTxDest, totalRead);
 
-            Log.i(TAG, StringEscapeUtils
-                    .escapeJava("uploadNextDataFromFifoToRemoteDevice: "
-                            + dataToWriteToRemoteBleDevice));
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "uploadNextDataFromFifoToRemoteDevice: " + totalRead + " bytes");
+            }
 
-            sendToModule(dataToWriteToRemoteBleDevice);
+            // the data stays in the TX buffer until the write succeeded
+            mTxChunkLength = totalRead;
+            if (!sendToModule(dataToWriteToRemoteBleDevice)) {
+                mTxChunkLength = 0;
+                mTxPump.schedule(SEND_DATA_RETRY_DELAY);
+            }
         } else {
             onUploaded();
         }
@@ -242,20 +463,46 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
      *             device
      */
     protected void writeToFifoAndUploadDataToRemoteDevice(String data) {
-        mTxBuffer.write(data);
-        uploadNextDataFromFifoToRemoteDevice();
+        writeToFifoAndUploadDataToRemoteDevice(data.getBytes(FifoQueue.CHARSET));
     }
 
-    ;
+    /**
+     * writes the data passed to the TX buffer and then sends the data to the
+     * remote device
+     *
+     * @param data the data to write to the TX buffer and to send to the remote
+     *             device
+     */
+    protected void writeToFifoAndUploadDataToRemoteDevice(byte[] data) {
+        mTxBuffer.write(data);
+        mTxPump.schedule();
+    }
 
     protected boolean sendToModule(String dataToBeSend) {
-        if (mBluetoothGatt != null && mCharRx != null && dataToBeSend != null) {
-            mCharRx.setValue(dataToBeSend);
-
-            System.out.println("char data Just send:"
-                    + mCharRx.getStringValue(0));
+        return dataToBeSend != null && sendToModule(dataToBeSend.getBytes(FifoQueue.CHARSET));
+    }
 
-            return mBluetoothGatt.writeCharacteristic(mCharRx);
+    /**
+     * queues a write of the data to the RX characteristic, the result is
+     * reported to {@link #onVspSendDataSuccess(BluetoothGatt, BluetoothGattCharacteristic)}
+     * or {@link #onVspSendDataFailure(BluetoothGatt, BluetoothGattCharacteristic, int)}
+     * once the queued operation completes. A late callback of a write that
+     * timed out doesn't complete any operation, so it's never reported
+     *
+     * @param dataToBeSend the data to send to the remote device
+     * @return false if there is no connection to queue the write on
+     */
+    protected boolean sendToModule(byte[] dataToBeSend) {
+        final BluetoothGattCharacteristic charRx = mCharRx;
+
+        if (mBluetoothGatt != null && charRx != null && dataToBeSend != null) {
+            mIsWriteInProgress = true;
+            mWriteStartTime = SystemClock.elapsedRealtimeNanos();
+            writeCharacteristic(charRx, dataToBeSend, isStreaming()
+                    ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                    : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT).addListener(operation ->
+                    onSendToModuleCompleted(charRx, operation.getStatus()));
+            return true;
         }
 
         return false;
@@ -306,11 +553,13 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
         if (VSP_CHAR_RX.equals(characteristic.getUuid())) {
             mCharRx = characteristic;
         } else if (VSP_CHAR_TX.equals(characteristic.getUuid())) {
+            mCharTx = characteristic;
             // add to queue as we want to enable notifications
             addCharToQueue(characteristic);
         } else if (VSP_CHAR_MODEM_IN.equals(characteristic.getUuid())) {
             mCharModemIn = characteristic;
         } else if (VSP_CHAR_MODEM_OUT.equals(characteristic.getUuid())) {
+            mCharModemOut = characteristic;
             // add to queue as we want to enable notifications
             addCharToQueue(characteristic);
         }
@@ -335,36 +584,75 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
             executeCharacteristicsQueue();
         }
 
-        mVSPUiDeviceCallback.onUiVspServiceFound(mIsValidVspDevice);
+        if (mVSPUiDeviceCallback != null) {
+            mVSPUiDeviceCallback.onUiVspServiceFound(mIsValidVspDevice);
+        }
     }
 
     @Override
     protected void onCharacteristicsQueueCompleted() {
         Log.i(TAG, "QUEUE COMPLETED");
-        enableModemIn();
-    }
+        GattOperation operation = enableModemIn();
 
-    @Override
-    public void onCharacteristicWrite(BluetoothGatt gatt,
-                                      BluetoothGattCharacteristic characteristic, int status) {
-        super.onCharacteristicWrite(gatt, characteristic, status);
+        // data can flow once the module knows we are ready to receive it
+        if (operation != null) {
+            operation.addListener(done -> onConnectionReady());
+        } else {
+            onConnectionReady();
+        }
+    }
 
-        UUID serviceUUID = characteristic.getService().getUuid();
-        UUID charUUID = characteristic.getUuid();
+    /**
+     * handles the result of a write to the RX characteristic, called on the
+     * thread that completed the operation
+     *
+     * @param charRx the RX characteristic that was written
+     * @param status the status of the operation
+     */
+    private void onSendToModuleCompleted(BluetoothGattCharacteristic charRx, int status) {
+        int chunkLength = mTxChunkLength;
+        mTxChunkLength = 0;
 
         if (status == BluetoothGatt.GATT_SUCCESS) {
-            if (VSP_SERVICE.equals(serviceUUID)) {
-                if (VSP_CHAR_RX.equals(charUUID)) {
-                    Log.i(TAG, "Data was sent successfully");
+            mSendDataFailures = 0;
+            // only now the chunk is removed, before the pump sends the next one
+            mTxBuffer.skip(chunkLength);
 
-                    // keep count of total bytes send to the remote BLE device
-                    mTxCounter = mTxCounter + characteristic.getValue().length;
-                    onVspSendDataSuccess(gatt, characteristic);
-                }
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Data was sent successfully");
             }
+
+            // keep count of total bytes send to the remote BLE device
+            mTxCounter = mTxCounter + charRx.getValue().length;
+            mStatistics.onTx(charRx.getValue().length,
+                    (SystemClock.elapsedRealtimeNanos() - mWriteStartTime) / 1000);
+            mIsWriteInProgress = false;
+            onVspSendDataSuccess(mBluetoothGatt, charRx);
+            return;
+        }
+
+        mIsWriteInProgress = false;
+        onVspSendDataFailure(mBluetoothGatt, charRx, status);
+
+        if (status == GattOperation.STATUS_CANCELLED || chunkLength == 0) {
+            return;
+        }
+
+        if (++mSendDataFailures > MAX_SEND_DATA_FAILURES) {
+            mSendDataFailures = 0;
+            onUploadFailed(String.valueOf(status));
+        } else {
+            // the chunk is still at the start of the TX buffer, send it again
+            mTxPump.schedule(SEND_DATA_RETRY_DELAY);
         }
     }
 
+    @Override
+    protected void onConnectionReady() {
+        mStatistics.reset();
+        super.onConnectionReady();
+    }
+
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt,
                                         BluetoothGattCharacteristic ch) {
@@ -373,10 +661,13 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
 
         if (VSP_SERVICE.equals(serviceUUID)) {
             if (VSP_CHAR_TX.equals(charUUID)) {
-                Log.i(TAG, "Data was received successfully");
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Data was received successfully");
+                }
 
                 // keep count of total bytes received from the remote BLE device
                 mRxCounter = mRxCounter + ch.getValue().length;
+                mStatistics.onRx(ch.getValue().length);
                 onVspReceiveData(gatt, ch);
             } else if (VSP_CHAR_MODEM_OUT.equals(charUUID)) {
                 /*
@@ -393,6 +684,7 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
                         BluetoothGattCharacteristic.FORMAT_UINT8, 0);
 
                 mIsBufferSpaceAvailableNewState = isBufferSpaceAvailableNewState == 1;
+                mStatistics.onBufferSpaceAvailable(mIsBufferSpaceAvailableNewState);
 
                 Log.i(TAG, "Was the buffer full previously: "
                         + isBufferSpaceAvailableOldState);
@@ -407,22 +699,32 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
 
     /**
      * for notifying the remote device that we can't send anymore data
+     *
+     * @return the queued write, null if the device has no modem in
+     * characteristic
      */
-    public void enableModemIn() {
+    public GattOperation enableModemIn() {
         if (mCharModemIn != null) {
             byte[] enable =
                     {
                             (byte) 1
                     };
-            mCharModemIn.setValue(enable);
-            mBluetoothGatt.writeCharacteristic(mCharModemIn);
+            return writeCharacteristic(mCharModemIn, enable,
+                    BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
         }
+        return null;
     }
 
     /**
      * Clears all values
      */
     private void setToDefault() {
+        mTxPump.cancel();
+        mIsWriteInProgress = false;
+        mTxChunkLength = 0;
+        mSendDataFailures = 0;
+        mIsHighThroughputActive = false;
+        mIsBufferSpaceAvailableNewState = true;
         mIsValidVspDevice = false;
         mCharTx = null;
         mCharRx = null;
@@ -430,25 +732,37 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
         mCharModemIn = null;
     }
 
+    /**
+     * frees the resources of this device, it can't be used afterwards
+     */
+    public void release() {
+        mTxPump.quit();
+        closeGatt();
+    }
+
     /**
      * clears the RX buffer and the TX buffer
      */
     protected void flushBuffers() {
         mRxBuffer.flush();
+        mRxFramer.reset();
         mTxBuffer.flush();
     }
 
-    ;
-
     /**
-     * override this method to define what data to sent to the remote BLE device
+     * override this method to define what data to sent to the remote BLE
+     * device, by default the content of the TX buffer is sent. Called on the
+     * pump thread
      */
     protected void uploadNextData() {
+        uploadNextDataFromFifoToRemoteDevice();
     }
 
     protected void onUploaded() {
         mFifoAndVspManagerState = FifoAndVspManagerState.UPLOADED;
-        flushBuffers();
+        // the RX buffer is kept as it can hold the start of a frame
+        mTxBuffer.flush();
+        stopHighThroughputProfile();
     }
 
     /**
@@ -460,6 +774,7 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
     protected void onUploadFailed(final String errorCode) {
         mFifoAndVspManagerState = FifoAndVspManagerState.FAILED;
         flushBuffers();
+        stopHighThroughputProfile();
     }
 
     /**
@@ -478,18 +793,11 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
      */
     public void onVspSendDataSuccess(final BluetoothGatt gatt,
                                      final BluetoothGattCharacteristic ch) {
-        sendDataHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                if (mFifoAndVspManagerState == FifoAndVspManagerState.UPLOADING) {/*
-                 * what to do after the data was send successfully
-                 */
-                    if (isBufferSpaceAvailable()) {
-                        uploadNextData();
-                    }
-                }
-            }
-        }, SEND_DATA_TO_REMOTE_DEVICE_DELAY);
+        /*
+         * what to do after the data was send successfully, the pump sends the
+         * next data if the module still has buffer space
+         */
+        mTxPump.schedule();
     }
 
     /**
@@ -497,7 +805,8 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
      *
      * @param gatt   GATT client
      * @param ch     the RX characteristic with the updated value
-     * @param status error of the failure
+     * @param status error of the failure, a BluetoothGatt status or one of the
+     *               STATUS constants of {@link GattOperation}
      */
     public void onVspSendDataFailure(final BluetoothGatt gatt,
                                      final BluetoothGattCharacteristic ch, final int status) {
@@ -527,15 +836,14 @@ public class VirtualSerialPortDevice extends BleBaseDeviceManager {
             final boolean isBufferSpaceAvailableOldState,
             final boolean isBufferSpaceAvailableNewState) {
 
-        if (mFifoAndVspManagerState == FifoAndVspManagerState.UPLOADING) {/*
+        /*
          * callback for what to do when data was send successfully from the
          * android device and when the module buffer was full and now it has
          * been cleared, which means it now has available space
          */
-            if (!isBufferSpaceAvailableOldState
-                    && isBufferSpaceAvailableNewState) {
-                uploadNextData();
-            }
+        if (!isBufferSpaceAvailableOldState
+                && isBufferSpaceAvailableNewState) {
+            mTxPump.schedule();
         }
     }
 
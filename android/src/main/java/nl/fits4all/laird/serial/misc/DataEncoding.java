@@ -0,0 +1,85 @@
+package nl.fits4all.laird.serial.misc;
+
+import android.util.Base64;
+
+/**
+ * The encodings data can be exchanged in with the javascript side. Binary
+ * data should always be exchanged as BASE64, UTF8 is only usable for text.
+ */
+public enum DataEncoding {
+	UTF8("utf8"), BASE64("base64");
+
+	private final String mName;
+
+	DataEncoding(String name) {
+		mName = name;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * @param name
+	 *            the name of the encoding, "utf8" or "base64"
+	 * @param defaultEncoding
+	 *            returned when the name is null
+	 * @return the encoding with the given name
+	 * @throws IllegalArgumentException
+	 *             if the name is not a known encoding
+	 */
+	public static DataEncoding fromName(String name, DataEncoding defaultEncoding) {
+		if (name == null) {
+			return defaultEncoding;
+		}
+
+		for (DataEncoding encoding : values()) {
+			if (encoding.mName.equalsIgnoreCase(name)) {
+				return encoding;
+			}
+		}
+
+		throw new IllegalArgumentException("Unknown encoding: " + name);
+	}
+
+	/**
+	 * @param data
+	 *            the data to encode
+	 * @return the data as a string in this encoding
+	 */
+	public String encode(byte[] data) {
+		return encode(data, 0, data.length);
+	}
+
+	/**
+	 * @param data
+	 *            the array holding the data to encode
+	 * @param offset
+	 *            the start of the data
+	 * @param length
+	 *            the total bytes to encode
+	 * @return the data as a string in this encoding
+	 */
+	public String encode(byte[] data, int offset, int length) {
+		if (this == BASE64) {
+			return Base64.encodeToString(data, offset, length, Base64.NO_WRAP);
+		}
+
+		return new String(data, offset, length, FifoQueue.CHARSET);
+	}
+
+	/**
+	 * @param data
+	 *            the string in this encoding
+	 * @return the decoded bytes
+	 * @throws IllegalArgumentException
+	 *             if the data is not valid BASE64
+	 */
+	public byte[] decode(String data) {
+		if (this == BASE64) {
+			return Base64.decode(data, Base64.DEFAULT);
+		}
+
+		return data.getBytes(FifoQueue.CHARSET);
+	}
+}
@@ -43,6 +43,8 @@ public class DataManipulation {
 	}
 
 	final private static char[] hexArray = "0123456789ABCDEF".toCharArray();
+	final private static byte[] hexBytes = { '0', '1', '2', '3', '4', '5',
+			'6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
 
 	/**
 	 * Converts an array of bytes to a HEX string
@@ -54,16 +56,55 @@ public class DataManipulation {
 	public static String bytesToHex(byte[] bytes) {
 		if (bytes == null) return null;
 
-		String result;
 		char[] hexChars = new char[bytes.length * 2];
-		for (int j = 0; j < bytes.length; j++) {
-			int v = bytes[j] & 0xFF;
-			hexChars[j * 2] = hexArray[v >>> 4];
-			hexChars[j * 2 + 1] = hexArray[v & 0x0F];
+		bytesToHex(bytes, 0, bytes.length, hexChars, 0);
+		return new String(hexChars);
+	}
+
+	/**
+	 * Converts bytes to HEX characters in a buffer that can be reused
+	 * 
+	 * @param bytes
+	 *            the data to be converted to HEX
+	 * @param offset
+	 *            the position of the first byte to convert
+	 * @param length
+	 *            the bytes to convert
+	 * @param hexChars
+	 *            the buffer to write 2 characters per byte to
+	 * @param hexOffset
+	 *            the position in the buffer to start writing at
+	 */
+	public static void bytesToHex(byte[] bytes, int offset, int length,
+			char[] hexChars, int hexOffset) {
+		for (int j = 0; j < length; j++) {
+			int v = bytes[offset + j] & 0xFF;
+			hexChars[hexOffset + j * 2] = hexArray[v >>> 4];
+			hexChars[hexOffset + j * 2 + 1] = hexArray[v & 0x0F];
 		}
+	}
 
-		result = new String(hexChars);
-		Log.i(TAG, "bytesToHex: " + result);
-		return result;
+	/**
+	 * Converts bytes to ASCII encoded HEX characters, so they can be written
+	 * to the outgoing data without a String in between
+	 * 
+	 * @param bytes
+	 *            the data to be converted to HEX
+	 * @param offset
+	 *            the position of the first byte to convert
+	 * @param length
+	 *            the bytes to convert
+	 * @param hex
+	 *            the buffer to write 2 ASCII characters per byte to
+	 * @param hexOffset
+	 *            the position in the buffer to start writing at
+	 */
+	public static void bytesToHex(byte[] bytes, int offset, int length,
+			byte[] hex, int hexOffset) {
+		for (int j = 0; j < length; j++) {
+			int v = bytes[offset + j] & 0xFF;
+			hex[hexOffset + j * 2] = hexBytes[v >>> 4];
+			hex[hexOffset + j * 2 + 1] = hexBytes[v & 0x0F];
+		}
 	}
 }
\ No newline at end of file
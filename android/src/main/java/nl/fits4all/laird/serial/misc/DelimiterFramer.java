@@ -0,0 +1,58 @@
+package nl.fits4all.laird.serial.misc;
+
+/**
+ * Finds frames that end with a delimiter, for example a carriage return. The
+ * delimiter is part of the frame.
+ * <p>
+ * Remembers up to where the buffer was already searched, so a long partial
+ * frame is not searched again every time new data arrives.
+ */
+public class DelimiterFramer implements Framer {
+	private final byte[] mDelimiter;
+	private final int mMaxFrameLength;
+	/**
+	 * position in the buffer up to where no delimiter can start
+	 */
+	private int mScanPosition = 0;
+
+	/**
+	 * @param delimiter
+	 *            the bytes every frame ends with
+	 * @param maxFrameLength
+	 *            frames without a delimiter are passed on once they reach
+	 *            this length, 0 for {@link #DEFAULT_MAX_FRAME_LENGTH}
+	 */
+	public DelimiterFramer(byte[] delimiter, int maxFrameLength) {
+		if (delimiter == null || delimiter.length == 0) {
+			throw new IllegalArgumentException("Delimiter can't be empty");
+		}
+
+		mDelimiter = delimiter.clone();
+		mMaxFrameLength = maxFrameLength > 0 ? maxFrameLength : DEFAULT_MAX_FRAME_LENGTH;
+	}
+
+	@Override
+	public int nextFrameLength(FifoQueue buffer) {
+		int delimiterIndex = buffer.indexOf(mDelimiter, mScanPosition);
+
+		if (delimiterIndex != -1) {
+			// the data after the frame was not searched yet
+			mScanPosition = 0;
+			return delimiterIndex + mDelimiter.length;
+		}
+
+		if (buffer.getSize() >= mMaxFrameLength) {
+			mScanPosition = 0;
+			return mMaxFrameLength;
+		}
+
+		// a delimiter could still start in the last bytes once more data arrives
+		mScanPosition = Math.max(0, buffer.getSize() - mDelimiter.length + 1);
+		return 0;
+	}
+
+	@Override
+	public void reset() {
+		mScanPosition = 0;
+	}
+}
@@ -0,0 +1,167 @@
+package nl.fits4all.laird.serial.misc;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a stream up to and including a delimiter, for example the lines of a
+ * smartBASIC source file.
+ * <p>
+ * The stream is read in blocks into an internal buffer and the delimiter is
+ * searched incrementally with the Knuth-Morris-Pratt algorithm, so every byte
+ * is looked at once and the match state carries over from one block to the
+ * next. Every byte is read as one character, like
+ * {@code (char) inputStream.read()} does.
+ */
+public class DelimiterReader {
+	private static final int BUFFER_SIZE = 8192;
+
+	private final InputStream mInputStream;
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+	private int mBufferPosition = 0;
+	private int mBufferLimit = 0;
+
+	/**
+	 * the characters of the data that is read, reused for every call
+	 */
+	private char[] mData = new char[256];
+
+	/**
+	 * the delimiter of the last call and its failure function, the
+	 * delimiter usually stays the same for a whole file
+	 */
+	private String mDelimiter;
+	private int[] mFailure;
+
+	/**
+	 * @param inputStream
+	 *            the stream to read, it's closed by {@link #close()}
+	 */
+	public DelimiterReader(InputStream inputStream) {
+		mInputStream = inputStream;
+	}
+
+	/**
+	 * reads the data until the delimiter is found
+	 *
+	 * @param delimiter
+	 *            the string to read data until it's found
+	 * @return the data up to and including the delimiter, the remaining data
+	 *         if the end of the stream was reached before the delimiter was
+	 *         found or null if there was no data left
+	 * @throws IOException
+	 *             if the stream could not be read
+	 */
+	public String readUntil(String delimiter) throws IOException {
+		if (delimiter == null || delimiter.isEmpty()) {
+			throw new IllegalArgumentException("Delimiter can't be empty");
+		}
+		int[] failure = getFailure(delimiter);
+
+		int length = 0;
+		int matched = 0;
+
+		while (true) {
+			if (mBufferPosition == mBufferLimit && !fillBuffer()) {
+				// EOF
+				return length > 0 ? new String(mData, 0, length) : null;
+			}
+
+			ensureCapacity(length + mBufferLimit - mBufferPosition);
+
+			while (mBufferPosition < mBufferLimit) {
+				char ch = (char) (mBuffer[mBufferPosition++] & 0xFF);
+				mData[length++] = ch;
+
+				while (matched > 0 && delimiter.charAt(matched) != ch) {
+					matched = failure[matched - 1];
+				}
+				if (delimiter.charAt(matched) == ch) {
+					matched++;
+				}
+				if (matched == delimiter.length()) {
+					return new String(mData, 0, length);
+				}
+			}
+		}
+	}
+
+	/**
+	 * reads up to length bytes, the buffered data is returned first
+	 *
+	 * @param bytes
+	 *            the array to read into
+	 * @param offset
+	 *            the start position in the array
+	 * @param length
+	 *            the maximum bytes to read
+	 * @return the bytes read or -1 at the end of the stream
+	 * @throws IOException
+	 *             if the stream could not be read
+	 */
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		int buffered = mBufferLimit - mBufferPosition;
+
+		if (buffered == 0) {
+			return mInputStream.read(bytes, offset, length);
+		}
+
+		int read = Math.min(buffered, length);
+		System.arraycopy(mBuffer, mBufferPosition, bytes, offset, read);
+		mBufferPosition += read;
+		return read;
+	}
+
+	public void close() throws IOException {
+		mInputStream.close();
+	}
+
+	/**
+	 * @return false if the end of the stream was reached
+	 */
+	private boolean fillBuffer() throws IOException {
+		int read = 0;
+		while (read == 0) {
+			read = mInputStream.read(mBuffer, 0, BUFFER_SIZE);
+		}
+
+		mBufferPosition = 0;
+		mBufferLimit = Math.max(0, read);
+		return read > 0;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > mData.length) {
+			char[] data = new char[Math.max(capacity, mData.length * 2)];
+			System.arraycopy(mData, 0, data, 0, mData.length);
+			mData = data;
+		}
+	}
+
+	/**
+	 * calculates the failure function of the delimiter, the length of the
+	 * longest proper prefix that is also a suffix of every prefix
+	 */
+	private int[] getFailure(String delimiter) {
+		if (delimiter.equals(mDelimiter)) {
+			return mFailure;
+		}
+
+		int[] failure = new int[delimiter.length()];
+		int matched = 0;
+
+		for (int i = 1; i < delimiter.length(); i++) {
+			while (matched > 0 && delimiter.charAt(i) != delimiter.charAt(matched)) {
+				matched = failure[matched - 1];
+			}
+			if (delimiter.charAt(i) == delimiter.charAt(matched)) {
+				matched++;
+			}
+			failure[i] = matched;
+		}
+
+		mDelimiter = delimiter;
+		mFailure = failure;
+		return failure;
+	}
+}
@@ -1,119 +1,281 @@
 package nl.fits4all.laird.serial.misc;
 
-import org.apache.commons.lang3.StringEscapeUtils;
-
-import android.util.Log;
+import java.nio.charset.Charset;
 
 /**
  * storing data into a buffer and makes it easy to read, write data to it. <br>
  * Used by the VSP functionalities to store the data that is receiving and the
  * data that will be sending
+ * <p>
+ * The data is kept as raw bytes in a circular buffer, so writing and reading
+ * never shifts the remaining data and binary payloads are stored untouched.
+ * The buffer grows when needed, unless a maximum capacity is given. All
+ * operations are synchronized as data is written and read from different
+ * threads.
  */
 public class FifoQueue {
-	private static final String TAG = FifoQueue.class.getName();
+	public static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+
+	private byte[] mBufferData;
+	private final int mMaxCapacity;
+	/**
+	 * index of the first byte that will be read
+	 */
+	private int mHead = 0;
+	/**
+	 * total bytes currently stored in the buffer
+	 */
+	private int mSize = 0;
+
+	public FifoQueue() {
+		this(DEFAULT_INITIAL_CAPACITY, Integer.MAX_VALUE);
+	}
 
-	private StringBuilder mBufferData = new StringBuilder();
+	/**
+	 * @param initialCapacity
+	 *            the capacity the buffer starts with
+	 * @param maxCapacity
+	 *            the capacity the buffer is never allowed to grow beyond
+	 */
+	public FifoQueue(int initialCapacity, int maxCapacity) {
+		if (initialCapacity <= 0 || maxCapacity < initialCapacity) {
+			throw new IllegalArgumentException("Invalid capacity: " + initialCapacity + "/" + maxCapacity);
+		}
+
+		mBufferData = new byte[initialCapacity];
+		mMaxCapacity = maxCapacity;
+	}
 
-	public int getSize() {
-		return mBufferData.length();
+	public synchronized int getSize() {
+		return mSize;
+	}
+
+	public synchronized int getCapacity() {
+		return mBufferData.length;
+	}
+
+	/**
+	 * @return the space left before the maximum capacity is reached
+	 */
+	public synchronized int getRemainingCapacity() {
+		return mMaxCapacity - mSize;
 	}
 
 	/**
 	 * clears the whole buffer
 	 */
-	public void flush() {
-		mBufferData.delete(0, mBufferData.length());
+	public synchronized void flush() {
+		mHead = 0;
+		mSize = 0;
 	}
 
 	/**
 	 * Add new data in buffer, the data will be kept in the buffer and get
 	 * merged with new data whenever this method is called
-	 * 
+	 *
+	 * @param value
+	 *            the data to be appended in the buffer, encoded as UTF-8
+	 * @return false if the data did not fit in the buffer, nothing is
+	 *         written in that case
+	 */
+	public boolean write(String value) {
+		return value == null || write(value.getBytes(CHARSET));
+	}
+
+	/**
+	 * Add new data in buffer
+	 *
 	 * @param value
 	 *            the data to be appended in the buffer
+	 * @return false if the data did not fit in the buffer, nothing is
+	 *         written in that case
 	 */
-	public void write(String value)	{
-		mBufferData.append(value);
+	public boolean write(byte[] value) {
+		return value == null || write(value, 0, value.length);
 	}
 
 	/**
-	 * read all data from buffer, data read gets removed from the buffer
-	 * 
-	 * @param dest
-	 *            the object to store the data read
-	 * @return the total number of characters read
-	 */
-	public int read(StringBuilder dest)	{
-		if (mBufferData.length() > 0) {
-			// we have data in the buffer
-			dest.append(mBufferData.substring(0, mBufferData.length()));
-			mBufferData.delete(0, mBufferData.length());
-			return dest.length();
+	 * Add new data in buffer
+	 *
+	 * @param value
+	 *            the array holding the data to be appended in the buffer
+	 * @param offset
+	 *            the start of the data in the value array
+	 * @param length
+	 *            the total bytes to append
+	 * @return false if the data did not fit in the buffer, nothing is
+	 *         written in that case
+	 */
+	public synchronized boolean write(byte[] value, int offset, int length) {
+		if (length > getRemainingCapacity()) {
+			return false;
 		}
 
-		return 0;
+		ensureCapacity(mSize + length);
+
+		int tail = (mHead + mSize) % mBufferData.length;
+		int firstPart = Math.min(length, mBufferData.length - tail);
+		System.arraycopy(value, offset, mBufferData, tail, firstPart);
+		System.arraycopy(value, offset + firstPart, mBufferData, 0, length - firstPart);
+		mSize += length;
+
+		return true;
 	}
 
 	/**
-	 * read the maximum data which is defined by the mMaxDataToBeReadFromBuffer
-	 * parameter. If there is less data than the mMaxDataToBeReadFromBuffer then
+	 * read all data from buffer, data read gets removed from the buffer
+	 *
+	 * @return the data read, an empty array if the buffer is empty
+	 */
+	public synchronized byte[] read() {
+		byte[] dest = new byte[mSize];
+		read(dest, 0, mSize);
+		return dest;
+	}
+
+	/**
+	 * read the maximum data which is defined by the maxDataToBeReadFromBuffer
+	 * parameter. If there is less data than the maxDataToBeReadFromBuffer then
 	 * all the data gets read from the buffer. The data read gets removed from
 	 * the buffer.
-	 * 
+	 *
 	 * @param dest
-	 *            the object to store the data read
+	 *            the array to store the data read
+	 * @param offset
+	 *            the position in dest to start storing at
 	 * @param maxDataToBeReadFromBuffer
 	 *            the maximum data to read from the buffer
-	 * @return the total number of characters read
-	 */
-	public int read(StringBuilder dest, int maxDataToBeReadFromBuffer)	{
-		Log.i(TAG, "reading " + maxDataToBeReadFromBuffer	+ " bytes from the FIFO queue");
-		if (mBufferData.length() <= maxDataToBeReadFromBuffer) {
-			/*
-			 * ignore the mMaxDataToBeReadFromBuffer variable and return the
-			 * last data remaining from the buffer
-			 */
-			dest.append(mBufferData.substring(0, mBufferData.length()));
-			mBufferData.delete(0, mBufferData.length());
-			return dest.length();
-		} else if (mBufferData.length() > maxDataToBeReadFromBuffer) {
-			/*
-			 * return data from the buffer until the mMaxDataToBeReadFromBuffer
-			 */
-			dest.append(mBufferData.substring(0, maxDataToBeReadFromBuffer));
-			mBufferData.delete(0, maxDataToBeReadFromBuffer);
-			return dest.length();
+	 * @return the total number of bytes read
+	 */
+	public synchronized int read(byte[] dest, int offset, int maxDataToBeReadFromBuffer) {
+		int total = peek(dest, offset, maxDataToBeReadFromBuffer);
+		skip(total);
+		return total;
+	}
+
+	/**
+	 * copies data from the start of the buffer without removing it
+	 *
+	 * @param dest
+	 *            the array to store the data
+	 * @param offset
+	 *            the position in dest to start storing at
+	 * @param maxDataToBeReadFromBuffer
+	 *            the maximum data to copy from the buffer
+	 * @return the total number of bytes copied
+	 */
+	public synchronized int peek(byte[] dest, int offset, int maxDataToBeReadFromBuffer) {
+		int total = Math.min(mSize, maxDataToBeReadFromBuffer);
+		int firstPart = Math.min(total, mBufferData.length - mHead);
+		System.arraycopy(mBufferData, mHead, dest, offset, firstPart);
+		System.arraycopy(mBufferData, 0, dest, offset + firstPart, total - firstPart);
+		return total;
+	}
+
+	/**
+	 * removes data from the start of the buffer without copying it
+	 *
+	 * @param total
+	 *            the total bytes to remove
+	 * @return the total number of bytes removed
+	 */
+	public synchronized int skip(int total) {
+		total = Math.min(mSize, total);
+		mHead = (mHead + total) % mBufferData.length;
+		mSize -= total;
+
+		if (mSize == 0) {
+			// start at the beginning again so the data stays contiguous
+			mHead = 0;
 		}
 
-		return 0;
+		return total;
 	}
 
 	/**
-	 * searches from the buffer the searchFor parameter string value. The search
-	 * for the character starts at the beginning and moves towards the end of
-	 * the buffer. If the searchFor string is found then the data from index 0
-	 * to and including the searchFor string is read from the buffer. The data
-	 * read gets removed from the buffer.
-	 * 
-	 * @param dest
-	 *            the object to append the data read
+	 * gets a byte of the buffer without removing it
+	 *
+	 * @param index
+	 *            the position relative to the start of the buffer
+	 * @return the byte at the given position
+	 */
+	public synchronized byte get(int index) {
+		if (index < 0 || index >= mSize) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+		}
+
+		return mBufferData[(mHead + index) % mBufferData.length];
+	}
+
+	/**
+	 * searches the buffer for the given bytes, starting at fromIndex and
+	 * moving towards the end of the buffer. Nothing is removed from the
+	 * buffer.
+	 *
 	 * @param searchFor
-	 *            the string to search the buffer for
-	 * @return the total number of characters read
+	 *            the bytes to search the buffer for
+	 * @param fromIndex
+	 *            the position relative to the start of the buffer to start
+	 *            searching at
+	 * @return the position of the first byte of searchFor relative to the
+	 *         start of the buffer, -1 if it's not found
 	 */
-	public int read(StringBuilder dest, String searchFor) {
-		Log.i(TAG, "reading from the FIFO queue until the character '"
-				+ StringEscapeUtils.escapeJava(searchFor) + "' is found");
+	public synchronized int indexOf(byte[] searchFor, int fromIndex) {
+		int lastStart = mSize - searchFor.length;
 
-		int stringToSearchForIndex = mBufferData.indexOf(searchFor);
+		for (int i = Math.max(0, fromIndex); i <= lastStart; i++) {
+			int j = 0;
+			while (j < searchFor.length
+					&& mBufferData[(mHead + i + j) % mBufferData.length] == searchFor[j]) {
+				j++;
+			}
+
+			if (j == searchFor.length) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * reads the next frame the framer finds in the buffer, the frame gets
+	 * removed from the buffer
+	 *
+	 * @param framer
+	 *            decides where the next frame ends
+	 * @return the frame or null if the buffer holds no complete frame
+	 */
+	public synchronized byte[] read(Framer framer) {
+		int frameLength = framer.nextFrameLength(this);
+		if (frameLength <= 0) {
+			return null;
+		}
+
+		byte[] frame = new byte[frameLength];
+		read(frame, 0, frameLength);
+		return frame;
+	}
+
+	/**
+	 * grows the buffer so that at least minCapacity bytes fit in it
+	 */
+	private void ensureCapacity(int minCapacity) {
+		if (minCapacity <= mBufferData.length) {
+			return;
+		}
 
-		if (stringToSearchForIndex != -1) {
-			dest.append(mBufferData.substring(0, stringToSearchForIndex + 1));
-			mBufferData.delete(0, stringToSearchForIndex + 1);
-			return dest.length();
+		int newCapacity = mBufferData.length;
+		while (newCapacity < minCapacity) {
+			newCapacity = newCapacity > mMaxCapacity / 2 ? mMaxCapacity : newCapacity * 2;
 		}
 
-		return 0;
+		byte[] newBufferData = new byte[newCapacity];
+		peek(newBufferData, 0, mSize);
+		mBufferData = newBufferData;
+		mHead = 0;
 	}
 
-}
\ No newline at end of file
+}
@@ -1,11 +1,8 @@
 package nl.fits4all.laird.serial.misc;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.util.Arrays;
 
-import org.apache.commons.lang3.StringEscapeUtils;
-
 import android.util.Log;
 
 /**
@@ -28,30 +25,54 @@ public abstract class FileHandling
 	 */
 	public static byte[] readUntilTotalBytesToRead(FileWrapper fileWrapper,
 			int totalBytesToRead) {
-		FileInputStream is = fileWrapper.getFileInputStream();
-		int fileEnd = 0;
 		byte[] bFile = new byte[(int) totalBytesToRead];
+		int fileEnd = readUntilTotalBytesToRead(fileWrapper, bFile, 0,
+				totalBytesToRead);
+
+		if (fileEnd == -1) {
+			return null;
+		}
+		return fileEnd == bFile.length ? bFile : Arrays.copyOf(bFile, fileEnd);
+	}
+
+	/**
+	 * reads from the file up to totalBytesToRead bytes into the given buffer,
+	 * without allocating anything.
+	 * 
+	 * @param fileWrapper
+	 *            the fileWrapper object associated with the file you want to
+	 *            read
+	 * @param buffer
+	 *            the buffer to read into
+	 * @param offset
+	 *            the position in the buffer to start writing at
+	 * @param totalBytesToRead
+	 *            the maximum bytes to read
+	 * @return the bytes read or -1 if EOF was reached
+	 */
+	public static int readUntilTotalBytesToRead(FileWrapper fileWrapper,
+			byte[] buffer, int offset, int totalBytesToRead) {
+		DelimiterReader is = fileWrapper.getDelimiterReader();
+		int fileEnd = -1;
 
 		try	{
-			fileEnd = is.read(bFile, 0, (int) totalBytesToRead);
+			fileEnd = is.read(buffer, offset, totalBytesToRead);
 
 			if (fileEnd == -1) {
 				// End of file.
 				is.close();
 				fileWrapper.setIsEOF(true);
 				Log.i(TAG, "isFileFinishedRead TRUE");
-				return null;
 			} else {
 				fileWrapper.setFileCurrentSizeRead((int) (fileWrapper
-						.getFileCurrentSizeRead() + totalBytesToRead));
+						.getFileCurrentSizeRead() + fileEnd));
 			}
 		}
 		catch (Exception e)	{
 			e.printStackTrace();
 		}
 
-		Log.i(TAG, "readUntilTotalBytesToRead bFile: " + Arrays.toString(bFile));
-		return bFile;
+		return fileEnd;
 	}
 
 	/**
@@ -68,47 +89,31 @@ public abstract class FileHandling
 	 */
 	public static String readUntilASpecificChar(FileWrapper fileWrapper,
 			String readUntil) {
-		FileInputStream is = fileWrapper.getFileInputStream();
-		StringBuilder result = new StringBuilder();
-		int charAsInteger = 0;
-		char ch = 0;
+		DelimiterReader is = fileWrapper.getDelimiterReader();
 
 		if (fileWrapper.getIsEOF())	{
 			return null;
 		}
 
 		try	{
-			while (true) {
-				charAsInteger = is.read();
-				if (charAsInteger == -1) {
-					// EOF
-					Log.i(TAG, "isFileFinishedRead TRUE");
-
-					is.close();
-					fileWrapper.setIsEOF(true);
-
-					if (result.length() > 0) {
-						return result.toString();
-					} else {
-						return null;
-					}
-				} else {
-					ch = (char) charAsInteger;
-					result.append(ch);
-					// updated the total bytes read whenever we read 1 byte
-					fileWrapper.setFileCurrentSizeRead((int) (fileWrapper
-							.getFileCurrentSizeRead() + 1));
-
-					if ((result.toString().contains(readUntil))) {
-						break;
-					}
-				}
+			String result = is.readUntil(readUntil);
+
+			// every character is one byte of the file
+			if (result != null) {
+				fileWrapper.setFileCurrentSizeRead((int) (fileWrapper
+						.getFileCurrentSizeRead() + result.length()));
 			}
 
-			Log.i(TAG, StringEscapeUtils
-					.escapeJava("Data that was just read from TXT: " + result));
+			if (result == null || !result.endsWith(readUntil)) {
+				// EOF
+				Log.i(TAG, "isFileFinishedRead TRUE");
+
+				is.close();
+				fileWrapper.setIsEOF(true);
+				return result;
+			}
 
-			return result.toString();
+			return result;
 
 		} catch (Exception e) {
 			e.printStackTrace();
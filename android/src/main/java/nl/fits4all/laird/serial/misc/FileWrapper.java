@@ -3,6 +3,8 @@ package nl.fits4all.laird.serial.misc;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 
 import org.apache.commons.lang3.StringEscapeUtils;
 
@@ -27,6 +29,12 @@ public class FileWrapper
 	private int mFileCurrentSizeRead = 0;
 	private boolean isEOF;
 	private FileInputStream mFileInputStream;
+	private DelimiterReader mDelimiterReader;
+	/**
+	 * the raw bytes of the last read, reused as long as the same amount is
+	 * read
+	 */
+	private byte[] mReadBuffer = new byte[0];
 
 	private Context mContext;
 
@@ -41,8 +49,8 @@ public class FileWrapper
 			 */
 			Cursor c = context.getContentResolver().query(mUri, null, null,
 					null, null);
-			c.moveToFirst();
-			int colCounter = c.getColumnCount();
+			// providers that don't describe the file leave the name and size unknown
+			int colCounter = c != null && c.moveToFirst() ? c.getColumnCount() : 0;
 
 			for (int i = 0; i < colCounter; i++) {
 
@@ -65,6 +73,13 @@ public class FileWrapper
 					// Not used atm.
 				}
 			}
+
+			if (c != null) {
+				c.close();
+			}
+			if (mFileName == null) {
+				mFileName = mUri.getLastPathSegment() != null ? mUri.getLastPathSegment() : "";
+			}
 		} else {
 			/*
 			 * other file and cloud based explorers
@@ -125,6 +140,15 @@ public class FileWrapper
 		return mFileInputStream;
 	}
 
+	/**
+	 * @return the buffered reader of the file input stream, the file has to
+	 *         be read through this once it's used so no buffered data is
+	 *         skipped
+	 */
+	public DelimiterReader getDelimiterReader() {
+		return mDelimiterReader;
+	}
+
 	/**
 	 * set the file name without an exception
 	 */
@@ -208,19 +232,102 @@ public class FileWrapper
 				e.printStackTrace();
 			}
 		}
+
+		mDelimiterReader = mFileInputStream != null ? new DelimiterReader(
+				mFileInputStream) : null;
+	}
+
+	/**
+	 * opens a new stream to read the file from the start, the caller has to
+	 * close it. Unlike {@link #setToDefaultValues()} this also works for
+	 * content providers that don't give a FileInputStream
+	 * 
+	 * @return the stream of the file
+	 * @throws FileNotFoundException
+	 *             if the file could not be opened
+	 */
+	public InputStream openInputStream() throws FileNotFoundException {
+		if (mFile != null) {
+			return new FileInputStream(mFile);
+		}
+
+		InputStream inputStream = mContext.getContentResolver().openInputStream(mUri);
+		if (inputStream == null) {
+			throw new FileNotFoundException("Could not open " + mUri);
+		}
+		return inputStream;
+	}
+
+	/**
+	 * opens a new stream to read the file from the given offset, the caller
+	 * has to close it
+	 * 
+	 * @param offset
+	 *            the bytes to skip at the start of the file
+	 * @return the stream of the file
+	 * @throws IOException
+	 *             if the file could not be opened or is shorter than the
+	 *             offset
+	 */
+	public InputStream openInputStream(long offset) throws IOException {
+		InputStream inputStream = openInputStream();
+
+		try {
+			skipFully(inputStream, offset);
+		} catch (IOException e) {
+			inputStream.close();
+			throw e;
+		}
+		return inputStream;
+	}
+
+	/**
+	 * skips bytes of the stream, for a file this seeks instead of reading
+	 */
+	private static void skipFully(InputStream inputStream, long bytes)
+			throws IOException {
+		while (bytes > 0) {
+			long skipped = inputStream.skip(bytes);
+
+			if (skipped <= 0) {
+				// skip may return 0 before EOF, reading tells the difference
+				if (inputStream.read() == -1) {
+					throw new IOException("File is shorter than " + bytes
+							+ " more bytes");
+				}
+				skipped = 1;
+			}
+			bytes -= skipped;
+		}
 	}
 
 	/**
-	 * reads from the file as many bytes as specified in the bytesToRead
-	 * parameter and then converts them to a HEX string format
+	 * reads from the file up to totalBytesToRead bytes and writes them as
+	 * ASCII HEX characters straight into the outgoing data, nothing is
+	 * allocated once the internal buffer has the size of a read
 	 * 
 	 * @param totalBytesToRead
-	 *            the total bytes to read from the file
-	 * @return the data read as HEX string or null if EOF was reached
+	 *            the maximum bytes to read from the file
+	 * @param hex
+	 *            the buffer to write the HEX characters to, it needs room
+	 *            for 2 times totalBytesToRead
+	 * @param offset
+	 *            the position in the buffer to start writing at
+	 * @return the HEX characters written or -1 if EOF was reached
 	 */
-	public String readNextHEXStringFromFile(int totalBytesToRead) {
-		return DataManipulation.bytesToHex(FileHandling
-				.readUntilTotalBytesToRead(this, totalBytesToRead));
+	public int readNextHEXFromFile(int totalBytesToRead, byte[] hex, int offset) {
+		if (mReadBuffer.length < totalBytesToRead) {
+			mReadBuffer = new byte[totalBytesToRead];
+		}
+
+		int read = FileHandling.readUntilTotalBytesToRead(this, mReadBuffer, 0,
+				totalBytesToRead);
+		if (read == -1) {
+			return -1;
+		}
+
+		DataManipulation.bytesToHex(mReadBuffer, 0, read, hex, offset);
+		return read * 2;
 	}
 
 	/**
@@ -0,0 +1,29 @@
+package nl.fits4all.laird.serial.misc;
+
+/**
+ * Finds frames that all have the same length.
+ */
+public class FixedLengthFramer implements Framer {
+	private final int mFrameLength;
+
+	/**
+	 * @param frameLength
+	 *            the length of every frame
+	 */
+	public FixedLengthFramer(int frameLength) {
+		if (frameLength <= 0) {
+			throw new IllegalArgumentException("Invalid frame length: " + frameLength);
+		}
+
+		mFrameLength = frameLength;
+	}
+
+	@Override
+	public int nextFrameLength(FifoQueue buffer) {
+		return buffer.getSize() >= mFrameLength ? mFrameLength : 0;
+	}
+
+	@Override
+	public void reset() {
+	}
+}
@@ -0,0 +1,31 @@
+package nl.fits4all.laird.serial.misc;
+
+/**
+ * Splits the data of a {@link FifoQueue} into frames.
+ * <p>
+ * Framers may remember how far they already looked into the buffer, so data
+ * that arrives in many small parts is only scanned once. This only works if
+ * frames are read from the buffer with {@link FifoQueue#read(Framer)} and
+ * {@link #reset()} is called whenever the buffer is flushed.
+ */
+public interface Framer {
+
+	/**
+	 * the longest frame a framer waits for by default, so a peer can't make
+	 * the RX buffer grow without limit
+	 */
+	int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+
+	/**
+	 * @param buffer
+	 *            the buffer holding the received data
+	 * @return the length of the complete frame at the start of the buffer, 0
+	 *         if the buffer does not hold a complete frame yet
+	 */
+	int nextFrameLength(FifoQueue buffer);
+
+	/**
+	 * forgets everything that was remembered about the buffer
+	 */
+	void reset();
+}
@@ -0,0 +1,65 @@
+package nl.fits4all.laird.serial.misc;
+
+import android.util.Log;
+
+/**
+ * Finds frames that start with the length of their payload. The length
+ * prefix is part of the frame.
+ * <p>
+ * A length prefix that announces a frame longer than the maximum frame length
+ * can only be corrupt, the buffered data is dropped then as the start of the
+ * next frame can't be found anymore.
+ */
+public class LengthPrefixFramer implements Framer {
+	private static final String TAG = "LengthPrefixFramer";
+
+	private final int mPrefixLength;
+	private final boolean mLittleEndian;
+	private final int mMaxFrameLength;
+
+	/**
+	 * @param prefixLength
+	 *            the total bytes of the length prefix, 1 to 4
+	 * @param littleEndian
+	 *            true if the least significant byte of the prefix comes first
+	 * @param maxFrameLength
+	 *            the longest frame including the prefix, 0 for
+	 *            {@link #DEFAULT_MAX_FRAME_LENGTH}
+	 */
+	public LengthPrefixFramer(int prefixLength, boolean littleEndian, int maxFrameLength) {
+		if (prefixLength < 1 || prefixLength > 4) {
+			throw new IllegalArgumentException("Invalid prefix length: " + prefixLength);
+		}
+
+		mPrefixLength = prefixLength;
+		mLittleEndian = littleEndian;
+		mMaxFrameLength = maxFrameLength > 0 ? maxFrameLength : DEFAULT_MAX_FRAME_LENGTH;
+	}
+
+	@Override
+	public int nextFrameLength(FifoQueue buffer) {
+		if (buffer.getSize() < mPrefixLength) {
+			return 0;
+		}
+
+		long payloadLength = 0;
+		for (int i = 0; i < mPrefixLength; i++) {
+			int index = mLittleEndian ? mPrefixLength - 1 - i : i;
+			payloadLength = (payloadLength << 8) | (buffer.get(index) & 0xFF);
+		}
+
+		long frameLength = mPrefixLength + payloadLength;
+		if (frameLength > mMaxFrameLength) {
+			Log.w(TAG, "Dropped " + buffer.getSize() + " bytes, frame length " + frameLength
+					+ " exceeds " + mMaxFrameLength);
+			buffer.flush();
+			return 0;
+		}
+
+		return buffer.getSize() >= frameLength ? (int) frameLength : 0;
+	}
+
+	@Override
+	public void reset() {
+	}
+}
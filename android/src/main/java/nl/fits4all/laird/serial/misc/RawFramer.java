@@ -0,0 +1,17 @@
+package nl.fits4all.laird.serial.misc;
+
+/**
+ * Treats all data in the buffer as a single frame, so data is passed on as
+ * it was received.
+ */
+public class RawFramer implements Framer {
+
+	@Override
+	public int nextFrameLength(FifoQueue buffer) {
+		return buffer.getSize();
+	}
+
+	@Override
+	public void reset() {
+	}
+}
@@ -0,0 +1,123 @@
+package nl.fits4all.laird.serial.misc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+/**
+ * Persists how far a file upload got, so an upload that was interrupted can
+ * continue where it stopped instead of sending the whole file again.
+ * <p>
+ * A checkpoint is kept per device and file, together with the size of the
+ * file. A checkpoint of a file that changed size is ignored. For every device
+ * the upload that was interrupted by a disconnect is remembered as well, so
+ * it can be resumed once the device is connected again.
+ */
+public class TransferCheckpoints {
+	private static final String PREFERENCES_NAME = "nl.fits4all.laird.TransferCheckpoints";
+
+	private static final String KEY_OFFSET = ".offset";
+	private static final String KEY_SIZE = ".size";
+	private static final String KEY_INTERRUPTED = ".interrupted";
+
+	private final SharedPreferences mPreferences;
+
+	public TransferCheckpoints(Context context) {
+		mPreferences = context.getApplicationContext().getSharedPreferences(
+				PREFERENCES_NAME, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * @param address
+	 *            the address of the device
+	 * @param uri
+	 *            the uri of the file
+	 * @param fileSize
+	 *            the current size of the file
+	 * @return the bytes of the file that the device confirmed, or 0 if there
+	 *         is no checkpoint or the file changed size
+	 */
+	public long getOffset(String address, Uri uri, long fileSize) {
+		String key = getKey(address, uri);
+
+		if (mPreferences.getLong(key + KEY_SIZE, -1) != fileSize) {
+			return 0;
+		}
+		return mPreferences.getLong(key + KEY_OFFSET, 0);
+	}
+
+	/**
+	 * stores the bytes of the file that the device confirmed, the write is
+	 * done in the background
+	 *
+	 * @param address
+	 *            the address of the device
+	 * @param uri
+	 *            the uri of the file
+	 * @param fileSize
+	 *            the size of the file
+	 * @param offset
+	 *            the bytes of the file that the device confirmed
+	 */
+	public void setOffset(String address, Uri uri, long fileSize, long offset) {
+		String key = getKey(address, uri);
+
+		mPreferences.edit()
+				.putLong(key + KEY_SIZE, fileSize)
+				.putLong(key + KEY_OFFSET, offset)
+				.apply();
+	}
+
+	/**
+	 * forgets the checkpoint of the file, called once it's uploaded
+	 * completely or the upload was cancelled
+	 *
+	 * @param address
+	 *            the address of the device
+	 * @param uri
+	 *            the uri of the file
+	 */
+	public void remove(String address, Uri uri) {
+		String key = getKey(address, uri);
+
+		mPreferences.edit()
+				.remove(key + KEY_SIZE)
+				.remove(key + KEY_OFFSET)
+				.apply();
+	}
+
+	/**
+	 * remembers the upload that was interrupted by a disconnect
+	 *
+	 * @param address
+	 *            the address of the device
+	 * @param uri
+	 *            the uri of the file that was uploaded
+	 */
+	public void setInterrupted(String address, Uri uri) {
+		mPreferences.edit()
+				.putString(address + KEY_INTERRUPTED, uri.toString())
+				.apply();
+	}
+
+	/**
+	 * @param address
+	 *            the address of the device
+	 * @return the uri of the file of which the upload to the device was
+	 *         interrupted, or null
+	 */
+	public Uri getInterrupted(String address) {
+		String uri = mPreferences.getString(address + KEY_INTERRUPTED, null);
+		return uri != null ? Uri.parse(uri) : null;
+	}
+
+	public void clearInterrupted(String address) {
+		mPreferences.edit()
+				.remove(address + KEY_INTERRUPTED)
+				.apply();
+	}
+
+	private static String getKey(String address, Uri uri) {
+		return address + "|" + uri;
+	}
+}
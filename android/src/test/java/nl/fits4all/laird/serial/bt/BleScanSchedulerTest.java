@@ -0,0 +1,69 @@
+package nl.fits4all.laird.serial.bt;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BleScanSchedulerTest {
+
+	@Test
+	public void allowsTheMaximumStartsRightAway() {
+		BleScanScheduler scheduler = new BleScanScheduler();
+
+		for (int i = 0; i < BleScanScheduler.MAX_SCAN_STARTS; i++) {
+			assertEquals(0, scheduler.getStartDelay(i * 1000));
+			scheduler.onScanStarted(i * 1000);
+		}
+	}
+
+	@Test
+	public void postponesAStartBeyondTheLimit() {
+		BleScanScheduler scheduler = new BleScanScheduler();
+		startMaximum(scheduler, 1000);
+
+		long now = 10 * 1000;
+		long delay = scheduler.getStartDelay(now);
+
+		// until the first start has left the period, with a margin
+		assertTrue(delay > 1000 + BleScanScheduler.SCAN_STARTS_PERIOD - now);
+		assertEquals(0, scheduler.getStartDelay(now + delay));
+	}
+
+	@Test
+	public void countsOnlyTheStartsOfTheLastPeriod() {
+		BleScanScheduler scheduler = new BleScanScheduler();
+		startMaximum(scheduler, 0);
+
+		long now = BleScanScheduler.SCAN_STARTS_PERIOD;
+		assertEquals(0, scheduler.getStartDelay(now));
+		scheduler.onScanStarted(now);
+
+		// the other starts are still in the period
+		assertTrue(scheduler.getStartDelay(now) > 0);
+	}
+
+	@Test
+	public void isContinuousWhenTheWindowFillsTheInterval() {
+		BleScanScheduler scheduler = new BleScanScheduler();
+
+		scheduler.setDutyCycle(5000, 5000);
+		assertTrue(scheduler.isContinuous());
+
+		scheduler.setDutyCycle(2000, 10000);
+		assertFalse(scheduler.isContinuous());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnIntervalShorterThanTheWindow() {
+		new BleScanScheduler().setDutyCycle(5000, 4000);
+	}
+
+	/**
+	 * starts the maximum scans within the period, the first at the given time
+	 */
+	private static void startMaximum(BleScanScheduler scheduler, long firstStart) {
+		for (int i = 0; i < BleScanScheduler.MAX_SCAN_STARTS; i++) {
+			scheduler.onScanStarted(firstStart + i);
+		}
+	}
+}
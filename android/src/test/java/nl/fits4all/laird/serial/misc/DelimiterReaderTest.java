@@ -0,0 +1,113 @@
+package nl.fits4all.laird.serial.misc;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class DelimiterReaderTest {
+	/**
+	 * the size of the internal buffer of the reader
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	@Test
+	public void readsUntilTheDelimiter() throws IOException {
+		DelimiterReader reader = createReader("first\r\nsecond\r\n");
+
+		assertEquals("first\r\n", reader.readUntil("\r\n"));
+		assertEquals("second\r\n", reader.readUntil("\r\n"));
+		assertNull(reader.readUntil("\r\n"));
+	}
+
+	@Test
+	public void findsADelimiterSplitAcrossTheBufferBoundary() throws IOException {
+		char[] line = new char[BUFFER_SIZE - 1];
+		Arrays.fill(line, 'x');
+		// the first byte of the delimiter is the last byte of the first block
+		String first = new String(line) + "END";
+		DelimiterReader reader = createReader(first + "tail");
+
+		assertEquals(first, reader.readUntil("END"));
+		assertEquals("tail", reader.readUntil("END"));
+	}
+
+	@Test
+	public void findsADelimiterSplitAcrossReads() throws IOException {
+		DelimiterReader reader = new DelimiterReader(
+				new OneByteInputStream("line one\r\nline two\r\n".getBytes(FifoQueue.CHARSET)));
+
+		assertEquals("line one\r\n", reader.readUntil("\r\n"));
+		assertEquals("line two\r\n", reader.readUntil("\r\n"));
+	}
+
+	@Test
+	public void findsADelimiterWithASelfOverlappingPrefix() throws IOException {
+		// after "aa" doesn't continue with "b" the match falls back to "a"
+		DelimiterReader reader = createReader("aaab|abcabcabd|rest");
+
+		assertEquals("aaab", reader.readUntil("aab"));
+		assertEquals("|abcabcabd", reader.readUntil("abcabd"));
+		assertEquals("|rest", reader.readUntil("abcabd"));
+	}
+
+	@Test
+	public void returnsTheRemainingDataWithoutDelimiterAtTheEnd() throws IOException {
+		DelimiterReader reader = createReader("no delimiter");
+
+		assertEquals("no delimiter", reader.readUntil("\r"));
+		assertNull(reader.readUntil("\r"));
+	}
+
+	@Test
+	public void readsTheBufferedDataFirst() throws IOException {
+		DelimiterReader reader = createReader("head|0123");
+		byte[] bytes = new byte[4];
+
+		assertEquals("head|", reader.readUntil("|"));
+		assertEquals(4, reader.read(bytes, 0, bytes.length));
+		assertArrayEquals("0123".getBytes(FifoQueue.CHARSET), bytes);
+		assertEquals(-1, reader.read(bytes, 0, bytes.length));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnEmptyDelimiter() throws IOException {
+		createReader("data").readUntil("");
+	}
+
+	private static DelimiterReader createReader(String data) {
+		return new DelimiterReader(new ByteArrayInputStream(data.getBytes(FifoQueue.CHARSET)));
+	}
+
+	/**
+	 * returns a single byte on every read, like a slow stream does
+	 */
+	private static class OneByteInputStream extends InputStream {
+		private final byte[] mData;
+		private int mPosition = 0;
+
+		OneByteInputStream(byte[] data) {
+			mData = data;
+		}
+
+		@Override
+		public int read() {
+			return mPosition < mData.length ? mData[mPosition++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			int value = read();
+			if (value == -1) {
+				return -1;
+			}
+
+			bytes[offset] = (byte) value;
+			return 1;
+		}
+	}
+}
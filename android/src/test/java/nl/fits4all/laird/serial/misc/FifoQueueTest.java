@@ -0,0 +1,92 @@
+package nl.fits4all.laird.serial.misc;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FifoQueueTest {
+
+	@Test
+	public void readsDataThatWrapsAround() {
+		FifoQueue queue = new FifoQueue(8, 8);
+
+		assertTrue(queue.write(bytes("abcdef")));
+		assertArrayEquals(bytes("abcd"), read(queue, 4));
+		// the tail wraps around to the start of the buffer
+		assertTrue(queue.write(bytes("ghijkl")));
+
+		assertEquals(8, queue.getCapacity());
+		assertEquals(8, queue.getSize());
+		assertEquals('e', queue.get(0));
+		assertEquals('l', queue.get(7));
+		assertArrayEquals(bytes("efghijkl"), queue.read());
+		assertEquals(0, queue.getSize());
+	}
+
+	@Test
+	public void growsAndKeepsWrappedData() {
+		FifoQueue queue = new FifoQueue(4, 64);
+
+		queue.write(bytes("abc"));
+		read(queue, 2);
+		queue.write(bytes("def"));
+		// the data wraps now, growing has to keep its order
+		queue.write(bytes("ghijklmnop"));
+
+		assertTrue(queue.getCapacity() >= 14);
+		assertArrayEquals(bytes("cdefghijklmnop"), queue.read());
+	}
+
+	@Test
+	public void refusesDataBeyondTheMaximumCapacity() {
+		FifoQueue queue = new FifoQueue(4, 8);
+
+		assertTrue(queue.write(bytes("abcdef")));
+		assertFalse(queue.write(bytes("ghi")));
+		// nothing of the refused data was written
+		assertEquals(6, queue.getSize());
+		assertEquals(2, queue.getRemainingCapacity());
+	}
+
+	@Test
+	public void peeksWithoutRemoving() {
+		FifoQueue queue = new FifoQueue(8, 8);
+		queue.write(bytes("abcdef"));
+		read(queue, 4);
+		queue.write(bytes("ghij"));
+
+		byte[] dest = new byte[5];
+		assertEquals(5, queue.peek(dest, 0, 5));
+		assertArrayEquals(bytes("efghi"), dest);
+		assertEquals(6, queue.getSize());
+
+		assertEquals(3, queue.skip(3));
+		assertArrayEquals(bytes("hij"), queue.read());
+	}
+
+	@Test
+	public void findsBytesThatWrapAround() {
+		FifoQueue queue = new FifoQueue(8, 8);
+		queue.write(bytes("xxxxxx"));
+		read(queue, 5);
+		queue.write(bytes("ab\r\ncd"));
+
+		assertEquals(3, queue.indexOf(bytes("\r\n"), 0));
+		assertEquals(-1, queue.indexOf(bytes("\r\n"), 4));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAMaximumBelowTheInitialCapacity() {
+		new FifoQueue(8, 4);
+	}
+
+	private static byte[] read(FifoQueue queue, int length) {
+		byte[] dest = new byte[length];
+		assertEquals(length, queue.read(dest, 0, length));
+		return dest;
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(FifoQueue.CHARSET);
+	}
+}
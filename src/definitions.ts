@@ -3,10 +3,11 @@ import { PluginListenerHandle } from "@capacitor/core";
 export interface LairdCapacitorPlugin {
 
   /**
-   * Start the discovering process for finding bluetooth devices.
+   * Start the discovering process for finding bluetooth devices. By default
+   * only devices that advertise the VSP service are found.
    * @param Options
    */
-  startDiscovering(options?: { periodically: boolean }): Promise<{ status: number, message: string }>
+  startDiscovering(options?: ScanOptions): Promise<{ status: number, message: string }>
 
   /**
    * Cancels the discovering process for finding bluetooth devices.
@@ -14,22 +15,94 @@ export interface LairdCapacitorPlugin {
   cancelDiscovering(): Promise<any>
   
   /**
-   * Connects to the specified device with the address.
+   * Connects to the specified device with the address. Multiple devices can
+   * be connected at the same time. Known devices can be connected without
+   * discovering them first. By default the device is connected in the
+   * background as soon as it's in range, autoConnect set to false connects
+   * directly, which fails after about 30 seconds if it's not in range.
+   * skipBondedCccdWrites skips enabling the notifications on a bonded device
+   * that still has them enabled from the previous connection with the same
+   * services, only use it for devices that store this for bonded clients.
    * @param Options
    */
-  connectToDevice(options: { address: string }): Promise<{ status: string }>
+  connectToDevice(options: { address: string, autoConnect?: boolean, skipBondedCccdWrites?: boolean }): Promise<{ status: string }>
 
   /**
-   * Disconnects the current connected device.
+   * Disconnects the device with the address. The address may be left out if
+   * only one device is connected.
    * @param Options
    */
-  disconnectFromDevice(): Promise<{ status: string }>
+  disconnectFromDevice(options?: { address?: string }): Promise<{ status: string }>
 
   /**
-   * Sends data to the connected device.
+   * Sends data to the device with the address. Binary data can be sent as
+   * base64 by setting the encoding to 'base64'. The address may be left out
+   * if only one device is connected.
    * @param Options 
    */
-  sendDataToDevice(options: { data: string }): Promise<{ status: string}>
+  sendDataToDevice(options: { address?: string, data: string, encoding?: DataEncoding }): Promise<{ status: string}>
+
+  /**
+   * Streams a file to the device with the address. The file is read from
+   * disk while it's sent, so it never has to pass the bridge. Progress is
+   * reported with fileUploadProgressEvent and the result with
+   * fileUploadFinishedEvent. The uri may be a file or content uri or a path.
+   * With resume the upload continues where an earlier upload of the file to
+   * the device stopped, and continues by itself once the device is connected
+   * again after a disconnect.
+   * The address may be left out if only one device is connected.
+   * @param Options
+   */
+  uploadFile(options: { address?: string, uri: string, resume?: boolean }): Promise<{ status: string }>
+
+  /**
+   * Cancels the file upload to the device with the address. The address may
+   * be left out if only one device is connected.
+   * @param Options
+   */
+  cancelFileUpload(options?: { address?: string }): Promise<{ status: string }>
+
+  /**
+   * Writes a file to the file system of the module with the address, for
+   * example a compiled smartBASIC application. The module must be in command
+   * mode. A .uwc file is stored under its name up to the first dot, other
+   * files under their full name. The window is the number of write commands
+   * that may be waiting for a response, 4 by default. Progress is reported
+   * with moduleFileWriteProgressEvent and the result with
+   * moduleFileWriteFinishedEvent. The uri may be a file or content uri or a
+   * path. The address may be left out if only one device is connected.
+   * @param Options
+   */
+  writeModuleFile(options: { address?: string, uri: string, window?: number }): Promise<{ status: string }>
+
+  /**
+   * Cancels writing a file to the module with the address. The address may
+   * be left out if only one device is connected.
+   * @param Options
+   */
+  cancelModuleFileWrite(options?: { address?: string }): Promise<{ status: string }>
+
+  /**
+   * Changes how data is sent to and received from a connected device.
+   * Options that are left out keep their current value.
+   * @param Options
+   */
+  setTransferOptions(options: TransferOptions): Promise<{ status: string }>
+
+  /**
+   * Gets how long each phase of the last connection setup with the device
+   * took, in milliseconds since the connection was requested. The address
+   * may be left out if only one device is connected.
+   * @param Options
+   */
+  getConnectionTiming(options?: { address?: string }): Promise<ConnectionTiming>
+
+  /**
+   * Gets the transfer statistics of the connection with the device since it
+   * was set up. The address may be left out if only one device is connected.
+   * @param Options
+   */
+  getStats(options?: { address?: string }): Promise<TransferStats>
 
   /**
    * DiscoveryStartEvent
@@ -47,6 +120,20 @@ export interface LairdCapacitorPlugin {
    * @param callback Callback
    */
   addListener(eventName: 'deviceFoundEvent', callback: (device: Device) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
+
+  /**
+   * DevicesFoundListener, only used when a report delay is set.
+   * @param eventName DevicesFoundEvent
+   * @param callback Callback
+   */
+  addListener(eventName: 'devicesFoundEvent', callback: (result: { devices: Device[] }) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
+
+  /**
+   * DeviceLostListener, only used when changesOnly is set.
+   * @param eventName DeviceLostEvent
+   * @param callback Callback
+   */
+  addListener(eventName: 'deviceLostEvent', callback: (device: { address: string }) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
   
   /**
    * DeviceRecvDataListener
@@ -55,6 +142,65 @@ export interface LairdCapacitorPlugin {
    */
   addListener(eventName: 'deviceRecvDataEvent', callback: (data: DeviceData) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
 
+  /**
+   * DeviceRecvDataBatchListener, only used when batching is enabled.
+   * @param eventName DeviceRecvDataBatchEvent
+   * @param callback Callback
+   */
+  addListener(eventName: 'deviceRecvDataBatchEvent', callback: (batch: DeviceDataBatch) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
+
+  /**
+   * DeviceDisconnectedListener
+   * @param eventName DeviceDisconnectedEvent
+   * @param callback Callback
+   */
+  addListener(eventName: 'deviceDisconnectedEvent', callback: (device: { address: string }) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
+
+  /**
+   * ConnectionTimingListener, called once a connection is ready to exchange
+   * data.
+   * @param eventName ConnectionTimingEvent
+   * @param callback Callback
+   */
+  addListener(eventName: 'connectionTimingEvent', callback: (timing: ConnectionTiming) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
+
+  /**
+   * StatsListener, called every statsInterval of the transfer options.
+   * @param eventName StatsEvent
+   * @param callback Callback
+   */
+  addListener(eventName: 'statsEvent', callback: (stats: TransferStats) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
+
+  /**
+   * FileUploadProgressListener
+   * @param eventName FileUploadProgressEvent
+   * @param callback Callback
+   */
+  addListener(eventName: 'fileUploadProgressEvent', callback: (progress: FileUploadProgress) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
+
+  /**
+   * FileUploadFinishedListener, called once the file is sent, the upload
+   * failed or it was cancelled.
+   * @param eventName FileUploadFinishedEvent
+   * @param callback Callback
+   */
+  addListener(eventName: 'fileUploadFinishedEvent', callback: (result: FileUploadResult) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
+
+  /**
+   * ModuleFileWriteProgressListener
+   * @param eventName ModuleFileWriteProgressEvent
+   * @param callback Callback
+   */
+  addListener(eventName: 'moduleFileWriteProgressEvent', callback: (progress: ModuleFileWriteProgress) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
+
+  /**
+   * ModuleFileWriteFinishedListener, called once the file is written, the
+   * write failed or it was cancelled.
+   * @param eventName ModuleFileWriteFinishedEvent
+   * @param callback Callback
+   */
+  addListener(eventName: 'moduleFileWriteFinishedEvent', callback: (result: ModuleFileWriteResult) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
+
 }
 
 export interface Device {
@@ -62,8 +208,421 @@ export interface Device {
   type: number;
   address: string;
   rssi: number;
+
+  /**
+   * Advertised flags, when advertised.
+   */
+  flags?: number;
+
+  /**
+   * Advertised TX power level in dBm, when advertised.
+   */
+  txPowerLevel?: number;
+
+  /**
+   * Advertised service UUIDs, short UUIDs are expanded to full UUIDs.
+   */
+  serviceUuids?: string[];
+
+  /**
+   * Advertised manufacturer specific data.
+   */
+  manufacturerData?: ManufacturerData[];
+}
+
+export interface ManufacturerData {
+  /**
+   * Company identifier assigned by the Bluetooth SIG.
+   */
+  companyId: number;
+
+  /**
+   * Base64 encoded data after the company identifier.
+   */
+  data: string;
 }
 
 export interface DeviceData {
+  address: string;
   data: string;
-}
\ No newline at end of file
+  encoding: DataEncoding;
+}
+
+export interface DeviceDataBatch {
+  address: string;
+  frames: string[];
+  encoding: DataEncoding;
+}
+
+/**
+ * Milliseconds from the connection request until each phase of the
+ * connection setup was reached. Phases that were not reached are left out.
+ */
+export interface ConnectionTiming {
+  address: string;
+
+  /**
+   * Always 0, the start of the setup.
+   */
+  connectRequested?: number;
+
+  /**
+   * The link layer connection is established.
+   */
+  connected?: number;
+
+  /**
+   * The services of the device are discovered.
+   */
+  servicesDiscovered?: number;
+
+  /**
+   * The MTU negotiation is done.
+   */
+  mtuNegotiated?: number;
+
+  /**
+   * The characteristics of the device are found.
+   */
+  charsFound?: number;
+
+  /**
+   * The notifications are enabled.
+   */
+  charsSetUp?: number;
+
+  /**
+   * The device is ready to exchange data.
+   */
+  ready?: number;
+}
+
+/**
+ * Transfer statistics of a connection. Rates are in bytes per second and
+ * latencies in microseconds.
+ */
+export interface TransferStats {
+  address: string;
+  txBytes: number;
+  rxBytes: number;
+  txChunks: number;
+  rxChunks: number;
+
+  /**
+   * Sent bytes per second over the last second.
+   */
+  txRate: number;
+
+  /**
+   * Received bytes per second over the last second.
+   */
+  rxRate: number;
+
+  /**
+   * Sent bytes per second since the connection was set up.
+   */
+  averageTxRate: number;
+
+  /**
+   * Received bytes per second since the connection was set up.
+   */
+  averageRxRate: number;
+
+  /**
+   * Bytes waiting to be sent.
+   */
+  txQueue: number;
+
+  /**
+   * Received bytes that are not yet part of a complete frame.
+   */
+  rxQueue: number;
+
+  /**
+   * Percentiles of the time from starting a write until it was acknowledged,
+   * over the last 256 writes.
+   */
+  writeLatencyP50: number;
+  writeLatencyP90: number;
+  writeLatencyP99: number;
+
+  /**
+   * Times the buffer of the device got full.
+   */
+  stalls: number;
+
+  /**
+   * Milliseconds the buffer of the device was full.
+   */
+  stallTime: number;
+}
+
+export interface FileUploadProgress {
+  address: string;
+
+  /**
+   * Bytes of the file that were sent.
+   */
+  bytesSent: number;
+
+  /**
+   * Size of the file, 0 or -1 if it's unknown.
+   */
+  totalBytes: number;
+}
+
+export interface FileUploadResult {
+  address: string;
+  success: boolean;
+
+  /**
+   * Size of the file, when the upload succeeded.
+   */
+  bytesSent?: number;
+
+  /**
+   * Reason the upload failed.
+   */
+  error?: string;
+}
+
+export interface ModuleFileWriteProgress {
+  address: string;
+
+  /**
+   * Bytes of the file the module acknowledged.
+   */
+  bytesWritten: number;
+
+  /**
+   * Size of the file, 0 or -1 if it's unknown.
+   */
+  totalBytes: number;
+}
+
+export interface ModuleFileWriteResult {
+  address: string;
+  success: boolean;
+
+  /**
+   * Name of the file on the module, when the write succeeded.
+   */
+  fileName?: string;
+
+  /**
+   * Size of the file, when the write succeeded.
+   */
+  bytesWritten?: number;
+
+  /**
+   * Error code of the module, for example 5002 when its memory is full.
+   */
+  errorCode?: string;
+
+  /**
+   * Reason the write failed.
+   */
+  error?: string;
+}
+
+export type DataEncoding = 'utf8' | 'base64';
+
+export interface ScanOptions {
+  /**
+   * Restarts the scan periodically, true by default.
+   */
+  periodically?: boolean;
+
+  /**
+   * Service UUIDs the device should advertise, full or 16 bit UUIDs. Only
+   * the VSP service by default, an empty list finds devices with any
+   * service.
+   */
+  services?: string[];
+
+  /**
+   * Names the device should advertise.
+   */
+  names?: string[];
+
+  /**
+   * Addresses the device should have.
+   */
+  addresses?: string[];
+
+  /**
+   * Manufacturer specific data the device should advertise.
+   */
+  manufacturerData?: ManufacturerDataFilter[];
+
+  /**
+   * Power and latency of the scan, 'lowLatency' by default.
+   */
+  scanMode?: 'lowPower' | 'balanced' | 'lowLatency' | 'opportunistic';
+
+  /**
+   * How many advertisements are needed before a device is reported,
+   * 'aggressive' by default.
+   */
+  matchMode?: 'aggressive' | 'sticky';
+
+  /**
+   * Milliseconds to collect found devices before reporting them together in
+   * one devicesFoundEvent. Every device is reported once per window. By
+   * default every device is reported immediately in a deviceFoundEvent.
+   */
+  reportDelay?: number;
+
+  /**
+   * Milliseconds the scan runs every scan interval when scanning
+   * periodically, 8000 by default.
+   */
+  scanWindow?: number;
+
+  /**
+   * Milliseconds between two scan starts when scanning periodically, 10000
+   * by default. Equal to the scan window to scan without pauses. Starts are
+   * postponed when they would exceed the platform limit of 5 scan starts per
+   * 30 seconds.
+   */
+  scanInterval?: number;
+
+  /**
+   * Only reports a device when it's found, when its RSSI changed more than
+   * the RSSI threshold, or as a deviceLostEvent once it's lost. False by
+   * default.
+   */
+  changesOnly?: boolean;
+
+  /**
+   * Change of the RSSI in dB that is reported with changesOnly, 5 by
+   * default.
+   */
+  rssiThreshold?: number;
+
+  /**
+   * Milliseconds without advertisements after which a device is lost with
+   * changesOnly, 10000 by default.
+   */
+  lostTimeout?: number;
+}
+
+export interface ManufacturerDataFilter {
+  /**
+   * Company identifier assigned by the Bluetooth SIG.
+   */
+  companyId: number;
+
+  /**
+   * Base64 encoded data the manufacturer data should start with.
+   */
+  data?: string;
+
+  /**
+   * Base64 encoded mask of the data bits to compare, as long as the data.
+   */
+  mask?: string;
+}
+
+export interface TransferOptions {
+  /**
+   * Address of the device to change the options of. When left out the
+   * options apply to all current and future connections.
+   */
+  address?: string;
+
+  /**
+   * Streams data with write without response when the device supports it.
+   * Only the buffer state of the device slows the transfer down.
+   */
+  writeWithoutResponse?: boolean;
+
+  /**
+   * Delay in milliseconds between two writes. By default the next write is
+   * sent as soon as the previous one was acknowledged.
+   */
+  pacingDelay?: number;
+
+  /**
+   * Requests a high connection priority and the LE 2M PHY while an upload
+   * is running.
+   */
+  highThroughput?: boolean;
+
+  /**
+   * Connection priority to go back to once an upload is done, 'balanced'
+   * by default.
+   */
+  idlePriority?: 'balanced' | 'lowPower';
+
+  /**
+   * Encoding of the data in received data events, 'utf8' by default.
+   * Use 'base64' for binary protocols.
+   */
+  encoding?: DataEncoding;
+
+  /**
+   * How received data is split into data events. By default every
+   * notification of the device becomes an event.
+   */
+  framing?: FramingOptions;
+
+  /**
+   * Groups received frames into deviceRecvDataBatchEvent events instead of
+   * sending a deviceRecvDataEvent for every frame. False turns batching off.
+   */
+  batching?: BatchingOptions | false;
+
+  /**
+   * Milliseconds between two statsEvents, 0 by default to send none.
+   */
+  statsInterval?: number;
+}
+
+export interface BatchingOptions {
+  /**
+   * A batch is sent once it holds this many bytes, 4096 by default.
+   */
+  maxBytes?: number;
+
+  /**
+   * A batch is sent once it holds this many frames, 64 by default.
+   */
+  maxFrames?: number;
+
+  /**
+   * Milliseconds a frame may wait in a batch, 50 by default.
+   */
+  maxLatency?: number;
+}
+
+export interface FramingOptions {
+  type: 'none' | 'delimiter' | 'fixedLength' | 'lengthPrefix';
+
+  /**
+   * Every frame ends with this string, required for 'delimiter'.
+   */
+  delimiter?: string;
+
+  /**
+   * Length of every frame in bytes, required for 'fixedLength'.
+   */
+  length?: number;
+
+  /**
+   * Longest frame in bytes, 65536 by default. Frames without a delimiter are
+   * passed on once they reach this length, the received data is dropped when
+   * a length prefix announces a longer frame.
+   */
+  maxLength?: number;
+
+  /**
+   * Total bytes of the length prefix for 'lengthPrefix', 1 by default.
+   */
+  prefixLength?: number;
+
+  /**
+   * True if the length prefix starts with the least significant byte.
+   */
+  littleEndian?: boolean;
+}
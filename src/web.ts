@@ -34,4 +34,46 @@ export class LairdCapacitorWeb extends WebPlugin implements LairdCapacitorPlugin
         });
     }
 
+    async uploadFile(): Promise<any> {
+        return new Promise<any>((_resolve, reject) => {
+            reject(new Error("Not implemented for web."));
+        });
+    }
+
+    async cancelFileUpload(): Promise<any> {
+        return new Promise<any>((_resolve, reject) => {
+            reject(new Error("Not implemented for web."));
+        });
+    }
+
+    async writeModuleFile(): Promise<any> {
+        return new Promise<any>((_resolve, reject) => {
+            reject(new Error("Not implemented for web."));
+        });
+    }
+
+    async cancelModuleFileWrite(): Promise<any> {
+        return new Promise<any>((_resolve, reject) => {
+            reject(new Error("Not implemented for web."));
+        });
+    }
+
+    async setTransferOptions(): Promise<any> {
+        return new Promise<any>((_resolve, reject) => {
+            reject(new Error("Not implemented for web."));
+        });
+    }
+
+    async getConnectionTiming(): Promise<any> {
+        return new Promise<any>((_resolve, reject) => {
+            reject(new Error("Not implemented for web."));
+        });
+    }
+
+    async getStats(): Promise<any> {
+        return new Promise<any>((_resolve, reject) => {
+            reject(new Error("Not implemented for web."));
+        });
+    }
+
 }